@@ -0,0 +1,171 @@
+package com.wyq.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 复制流时使用的缓冲区池
+ * <p>
+ * 缓冲区按 4K、8K、16K、32K、64K 分成 5 个大小档，字节、字符、直接内存三种缓冲区各自按档缓存，每个线程每种每档缓存一个，
+ * 借还都不加锁。超过 64K 的缓冲区不缓存，直接分配，所以每个线程最多留住 124K 字节、124K 字符和 124K 直接内存，
+ * 线程池很大时也不会长期占住大量内存。借到的缓冲区长度不小于请求的大小，内容是上次使用留下的，不会清零
+ *
+ * <pre>
+ * byte[] buf = BufferPool.bytes(8192);
+ * try {
+ *     ...
+ * }
+ * finally {
+ *     BufferPool.release(buf);
+ * }
+ * </pre>
+ *
+ * 归还之后不要再使用该缓冲区，也不要归还两次，否则可能与其他借用者共用同一个缓冲区
+ */
+public final class BufferPool {
+
+    private static final int MIN_SHIFT = 12;
+
+    private static final int MAX_SHIFT = 16;
+
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /**
+     * 每个线程每档缓存一个缓冲区，借出时置空，重入时会另外分配
+     */
+    private static final class Cache {
+        final byte[][] bytes = new byte[CLASSES][];
+        final char[][] chars = new char[CLASSES][];
+        final ByteBuffer[] direct = new ByteBuffer[CLASSES];
+    }
+
+    private static final ThreadLocal<Cache> caches = ThreadLocal.withInitial(Cache::new);
+
+    /**
+     * @return 能放下 size 的最小档，超过最大档时返回 -1
+     */
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        if (size > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * @return 长度刚好等于某一档时返回该档，否则返回 -1
+     */
+    private static int exactClass(int length) {
+        if (Integer.bitCount(length) != 1) {
+            return -1;
+        }
+        int shift = Integer.numberOfTrailingZeros(length);
+        return shift < MIN_SHIFT || shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * 借一个字节缓冲区
+     *
+     * @param size
+     *            最小长度
+     * @return 缓冲区
+     */
+    public static byte[] bytes(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            return new byte[size];
+        }
+        Cache cache = caches.get();
+        byte[] buf = cache.bytes[c];
+        if (buf == null) {
+            return new byte[1 << (c + MIN_SHIFT)];
+        }
+        cache.bytes[c] = null;
+        return buf;
+    }
+
+    /**
+     * 借一个字符缓冲区
+     *
+     * @param size
+     *            最小长度
+     * @return 缓冲区
+     */
+    public static char[] chars(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            return new char[size];
+        }
+        Cache cache = caches.get();
+        char[] buf = cache.chars[c];
+        if (buf == null) {
+            return new char[1 << (c + MIN_SHIFT)];
+        }
+        cache.chars[c] = null;
+        return buf;
+    }
+
+    /**
+     * 借一个直接内存缓冲区，用于通道读写，可以省掉 JDK 内部从堆到直接内存的复制
+     *
+     * @param size
+     *            最小容量
+     * @return 已 clear 的缓冲区
+     */
+    public static ByteBuffer direct(int size) {
+        int c = sizeClass(size);
+        if (c < 0) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        Cache cache = caches.get();
+        ByteBuffer buf = cache.direct[c];
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+        }
+        cache.direct[c] = null;
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * 归还字节缓冲区，可以接受 null，不是本池大小档的缓冲区直接丢弃
+     *
+     * @param buf
+     *            缓冲区
+     */
+    public static void release(byte[] buf) {
+        int c = buf == null ? -1 : exactClass(buf.length);
+        if (c >= 0) {
+            caches.get().bytes[c] = buf;
+        }
+    }
+
+    /**
+     * 归还字符缓冲区，可以接受 null，不是本池大小档的缓冲区直接丢弃
+     *
+     * @param buf
+     *            缓冲区
+     */
+    public static void release(char[] buf) {
+        int c = buf == null ? -1 : exactClass(buf.length);
+        if (c >= 0) {
+            caches.get().chars[c] = buf;
+        }
+    }
+
+    /**
+     * 归还直接内存缓冲区，可以接受 null，不是本池大小档的缓冲区直接丢弃
+     *
+     * @param buf
+     *            缓冲区
+     */
+    public static void release(ByteBuffer buf) {
+        int c = buf == null || !buf.isDirect() ? -1 : exactClass(buf.capacity());
+        if (c >= 0) {
+            caches.get().direct[c] = buf;
+        }
+    }
+
+    private BufferPool() {}
+}
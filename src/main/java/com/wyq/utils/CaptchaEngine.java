@@ -0,0 +1,362 @@
+package com.wyq.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.StringUtils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 高吞吐的验证码生成器，画法与 {@link ImageUtils#createCaptcha(String, int, int, String, String, String)} 一致
+ * <p>
+ * 同一尺寸的画布和 PNG 编码器循环复用，字体在创建时预先解析好，后台线程提前生成验证码放入环形缓冲区，
+ * 取用时直接拿到编码好的 PNG 字节。缓冲区被取空时，在调用线程上现场生成，不会阻塞
+ *
+ * <pre>
+ * CaptchaEngine engine = new CaptchaEngine(4, 1024);
+ * CaptchaEngine.Captcha c = engine.take();
+ * session.setAttribute("captcha", c.getText());
+ * c.writeTo(response.getOutputStream());
+ * </pre>
+ */
+@Slf4j
+public class CaptchaEngine implements Closeable {
+
+    /**
+     * 每个 (样式, 字号) 预先解析的随机字体个数
+     */
+    private static final int FONT_VARIANTS = 8;
+
+    /**
+     * 后台生成连续失败多少次后停止，之后 take 只在调用线程上现场生成
+     */
+    private static final int MAX_FAILURES = 10;
+
+    /**
+     * 后台生成失败后的首次等待毫秒数，之后每次翻倍
+     */
+    private static final long FAILURE_BACKOFF = 100;
+
+    /**
+     * 一个生成好的验证码
+     */
+    public static final class Captcha {
+
+        private final String text;
+
+        private final byte[] png;
+
+        Captcha(String text, byte[] png) {
+            this.text = text;
+            this.png = png;
+        }
+
+        /**
+         * @return 验证码文字
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return PNG 图片字节，不要修改其内容
+         */
+        public byte[] getImage() {
+            return png;
+        }
+
+        /**
+         * 将 PNG 图片写入输出流。
+         * <p>
+         * <b style=color:red>注意</b>，它并不会关闭输出流
+         *
+         * @param ops
+         *            输出流
+         * @return 写入的字节数
+         * @throws IOException
+         */
+        public int writeTo(OutputStream ops) throws IOException {
+            ops.write(png);
+            return png.length;
+        }
+
+        /**
+         * 将 PNG 图片写入缓冲区的当前位置
+         *
+         * @param buf
+         *            缓冲区，剩余空间不足时抛出 BufferOverflowException
+         * @return 写入的字节数
+         */
+        public int writeTo(ByteBuffer buf) {
+            buf.put(png);
+            return png.length;
+        }
+
+        /**
+         * @return "data:image/png;base64," 开头的图片字符串，同 {@link ImageUtils#writeBase64String(BufferedImage)}
+         */
+        public String toBase64String() {
+            return "data:image/png;base64," + Base64.getEncoder().encodeToString(png);
+        }
+    }
+
+    /**
+     * 一套可复用的画布、扭曲目标图和 PNG 编码器
+     */
+    private static final class Slot {
+        final BufferedImage canvas;
+        final BufferedImage target;
+        final ImageWriter writer;
+        final ByteArrayOutputStream out;
+
+        Slot(int width, int height) {
+            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            writer = ImageIO.getImageWritersByFormatName("png").next();
+            out = new ByteArrayOutputStream(width * height);
+        }
+    }
+
+    private final int length;
+    private final int width;
+    private final int height;
+    private final Color fontColor;
+    private final Color bgColor;
+    private final int minFontSize;
+    private final int maxFontSize;
+    private volatile Font[][][] fonts;
+    /**
+     * 随机字体表是否基于读取完成的系统字体，为 false 时表里只有逻辑字体
+     */
+    private volatile boolean fontsResolved;
+
+    private final BlockingQueue<Captcha> ready;
+    private final ConcurrentLinkedQueue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+    private final Thread refiller;
+    private volatile boolean closed;
+
+    /**
+     * 生成随机字体、随机颜色、默认尺寸的数字+小写字母验证码
+     *
+     * @param length
+     *            验证码长度
+     * @param capacity
+     *            预先生成的验证码个数
+     */
+    public CaptchaEngine(int length, int capacity) {
+        this(length, 0, 0, null, null, null, capacity);
+    }
+
+    /**
+     * @param length
+     *            验证码长度
+     * @param width
+     *            图片宽度，小于等于 0 时按长度计算
+     * @param height
+     *            图片高度，小于等于 0 时为 30
+     * @param fontColor
+     *            文字颜色，为空表示随机
+     * @param bgColor
+     *            背景颜色，为空表示每张图随机
+     * @param fontName
+     *            字体名称，为空表示随机字体
+     * @param capacity
+     *            预先生成的验证码个数，小于等于 0 表示不启用后台生成
+     */
+    public CaptchaEngine(int length, int width, int height, String fontColor, String bgColor, String fontName,
+                         int capacity) {
+        if (length <= 0) {
+            throw Lang.makeThrow("Captcha length must be positive: %d", length);
+        }
+        this.length = length;
+        this.width = width > 0 ? width : length * 20 + 20;
+        this.height = height > 0 ? height : 30;
+        this.fontColor = StringUtils.isEmpty(fontColor) ? null : Colors.as(fontColor);
+        this.bgColor = StringUtils.isEmpty(bgColor) ? null : Colors.as(bgColor);
+        this.minFontSize = this.height - 10;
+        this.maxFontSize = this.height - 5;
+        this.fontsResolved = !StringUtils.isEmpty(fontName) || Fonts.isDiscovered();
+        this.fonts = resolveFonts(fontName, minFontSize, maxFontSize);
+
+        if (capacity > 0) {
+            this.ready = new ArrayBlockingQueue<Captcha>(capacity);
+            this.refiller = new Thread(this::refill, "captcha-refill");
+            this.refiller.setDaemon(true);
+            this.refiller.start();
+        } else {
+            this.ready = null;
+            this.refiller = null;
+        }
+    }
+
+    /**
+     * 预先解析每种样式、字号的字体，样式为 Font.PLAIN | Font.BOLD | Font.ITALIC 的组合
+     */
+    private static Font[][][] resolveFonts(String fontName, int minSize, int maxSize) {
+        Font[][][] table = new Font[4][maxSize - minSize + 1][];
+        for (int style = 0; style < 4; style++) {
+            for (int size = minSize; size <= maxSize; size++) {
+                Font[] fs;
+                if (StringUtils.isEmpty(fontName)) {
+                    fs = new Font[FONT_VARIANTS];
+                    for (int i = 0; i < fs.length; i++) {
+                        fs[i] = Fonts.random(style, size);
+                    }
+                } else {
+                    fs = new Font[]{Fonts.get(fontName, style, size)};
+                }
+                table[style][size - minSize] = fs;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * 取一个验证码。优先从缓冲区取，缓冲区为空时现场生成
+     *
+     * @return 验证码
+     */
+    public Captcha take() {
+        Captcha c = ready == null ? null : ready.poll();
+        return c != null ? c : generate();
+    }
+
+    /**
+     * 现场生成一个随机文字的验证码
+     *
+     * @return 验证码
+     */
+    public Captcha generate() {
+        return generate(R.captchaChar(length));
+    }
+
+    /**
+     * 现场生成指定文字的验证码
+     *
+     * @param text
+     *            文字内容
+     * @return 验证码
+     */
+    public Captcha generate(String text) {
+        if (StringUtils.isEmpty(text)) {
+            throw Lang.makeThrow("Captcha text is empty");
+        }
+        Slot slot = slots.poll();
+        if (slot == null) {
+            slot = new Slot(width, height);
+        }
+        try {
+            Color bg = bgColor == null ? Colors.randomColor() : bgColor;
+            Font[][][] table = fonts();
+            ImageUtils.drawCaptcha(slot.canvas, text, fontColor, bg, (style, size) -> {
+                Font[] fs = table[style][size - minFontSize];
+                return fs[R.random(0, fs.length - 1)];
+            });
+            double period = R.random(0, 7) + 3;
+            double phase = R.random(0, 6);
+            ImageUtils.twist(slot.canvas, slot.target, 1, period, phase, bg.getRGB() & 0xffffff);
+            return new Captcha(text, encode(slot));
+        }
+        finally {
+            slots.offer(slot);
+            // close 可能已经清理过 slots，这时由自己释放编码器；remove 成功说明 close 没有拿到它，不会重复释放
+            if (closed && slots.remove(slot)) {
+                slot.writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * 创建时系统字体还没读完的话，随机字体表里只有逻辑字体，读完之后重新解析一次。并发时可能重复解析，结果一样
+     */
+    private Font[][][] fonts() {
+        if (!fontsResolved && Fonts.isDiscovered()) {
+            fonts = resolveFonts(null, minFontSize, maxFontSize);
+            fontsResolved = true;
+        }
+        return fonts;
+    }
+
+    private static byte[] encode(Slot slot) {
+        slot.out.reset();
+        try {
+            ImageOutputStream ios = new MemoryCacheImageOutputStream(slot.out);
+            try {
+                slot.writer.setOutput(ios);
+                slot.writer.write(null, new IIOImage(slot.target, null, null), null);
+            }
+            finally {
+                ios.close();
+                slot.writer.reset();
+            }
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+        return slot.out.toByteArray();
+    }
+
+    /**
+     * @return 缓冲区中已生成好的验证码个数
+     */
+    public int available() {
+        return ready == null ? 0 : ready.size();
+    }
+
+    private void refill() {
+        int failures = 0;
+        while (!closed) {
+            try {
+                ready.put(generate());
+                failures = 0;
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            catch (RuntimeException e) {
+                // 字体、AWT 环境等问题通常会一直失败，退避重试，连续失败太多次就停止后台生成
+                if (++failures >= MAX_FAILURES) {
+                    log.error("连续{}次生成验证码失败，停止后台生成", failures, e);
+                    break;
+                }
+                log.warn("生成验证码失败，{}ms 后重试", FAILURE_BACKOFF << (failures - 1), e);
+                try {
+                    Thread.sleep(FAILURE_BACKOFF << (failures - 1));
+                }
+                catch (InterruptedException e2) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止后台生成，清空缓冲区
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (refiller != null) {
+            refiller.interrupt();
+            ready.clear();
+        }
+        Slot slot;
+        while ((slot = slots.poll()) != null) {
+            slot.writer.dispose();
+        }
+    }
+}
@@ -2,11 +2,19 @@ package com.wyq.utils;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static java.lang.Integer.parseInt;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 public final class Colors {
 
@@ -20,106 +28,191 @@ public final class Colors {
         return as(str);
     }
 
+    /**
+     * 缓存的颜色字符串个数上限，超出后清空重来
+     */
+    private static final int CACHE_SIZE = 1024;
+
+    private static final ConcurrentMap<String, Color> cache = new ConcurrentHashMap<String, Color>();
+
     /**
      * 将字符串变成颜色值
+     * <p>
+     * 支持 #RGB, #RRGGBB, #ARGB, #AARRGGBB, rgb(r,g,b), rgba(r,g,b,a) 格式，大小写不敏感，
+     * 末尾可以带分号，a 为 0-1 之间的小数。解析结果会被缓存，返回的颜色对象可能是共享的
      * 
      * @param str
      *            颜色字符串，详细，请参看本类的总体描述，如果为空，则表示黑色
-     * @return 颜色对象
+     * @return 颜色对象，全都匹配不上时为黑色
      */
     public static Color as(String str) {
-        if (null == str){
+        if (null == str) {
             return Color.BLACK;
         }
-        // 整理一下字符串以便后面匹配分析
-        str = StringVerification.trim(str.toUpperCase());
-
-        if (str.startsWith("#")) {
-            str = str.substring(1);
+        Color color = cache.get(str);
+        if (color == null) {
+            color = parse(str);
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+            cache.put(str, color);
         }
+        return color;
+    }
 
-        if (str.endsWith(";")) {
-            str = str.substring(0, str.length() - 1);
+    /**
+     * 一趟扫描解析颜色字符串
+     */
+    private static Color parse(String str) {
+        // 整理一下字符串以便后面匹配分析
+        int from = 0;
+        int to = str.length();
+        while (from < to && Character.isWhitespace(str.charAt(from))) {
+            from++;
         }
-
-        // RGB: #FFF
-        String reg1 = "^([0-9A-F])([0-9A-F])([0-9A-F])$";
-        Pattern p = Pattern.compile(reg1);
-        Matcher m = p.matcher(str);
-        if (m.find()) {
-            return new Color(parseInt(StringVerification.dup(m.group(1), 2), 16),
-                             parseInt(StringVerification.dup(m.group(2), 2), 16),
-                             parseInt(StringVerification.dup(m.group(3), 2), 16));
+        while (to > from && Character.isWhitespace(str.charAt(to - 1))) {
+            to--;
         }
-
-        // RRGGBB: #F0F0F0
-        String reg2 = "^([0-9A-F]{2})([0-9A-F]{2})([0-9A-F]{2})$";
-        p = Pattern.compile(reg2);
-        m = p.matcher(str);
-        if (m.find()) {
-            return new Color(parseInt(m.group(1), 16),
-                             parseInt(m.group(2), 16),
-                             parseInt(m.group(3), 16));
+        if (from < to && str.charAt(from) == '#') {
+            from++;
         }
-
-        // ARGB: #9FE5
-        String reg3 = "^([0-9A-F])([0-9A-F])([0-9A-F])([0-9A-F])$";
-        p = Pattern.compile(reg3);
-        m = p.matcher(str);
-        if (m.find()) {
-            return new Color(parseInt(StringVerification.dup(m.group(2), 2), 16),
-                             parseInt(StringVerification.dup(m.group(3), 2), 16),
-                             parseInt(StringVerification.dup(m.group(4), 2), 16),
-                             parseInt(StringVerification.dup(m.group(1), 2), 16));
+        if (from < to && str.charAt(to - 1) == ';') {
+            to--;
         }
 
-        // AARRGGBB: #88FF8899
-        String reg4 = "^([0-9A-F]{2})([0-9A-F]{2})([0-9A-F]{2})([0-9A-F]{2})$";
-        p = Pattern.compile(reg4);
-        m = p.matcher(str);
-        if (m.find()) {
-            return new Color(parseInt(m.group(2), 16),
-                             parseInt(m.group(3), 16),
-                             parseInt(m.group(4), 16),
-                             parseInt(m.group(1), 16));
+        Color color = parseHex(str, from, to);
+        if (color == null) {
+            color = parseFunction(str, from, to);
         }
+        return color == null ? Color.BLACK : color;
+    }
 
-        // RGB值: rgb(255,33,89)
-        String reg5 = "^RGB\\s*[(]\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,\\s*(\\d+)\\s*[)]$";
-        p = Pattern.compile(reg5);
-        m = p.matcher(str);
-        if (m.find()) {
-            return new Color(parseInt(m.group(1), 10),
-                             parseInt(m.group(2), 10),
-                             parseInt(m.group(3), 10));
+    /**
+     * RGB: FFF, RRGGBB: F0F0F0, ARGB: 9FE5, AARRGGBB: 88FF8899
+     */
+    private static Color parseHex(String str, int from, int to) {
+        int len = to - from;
+        if (len != 3 && len != 4 && len != 6 && len != 8) {
+            return null;
+        }
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            int d = Character.digit(str.charAt(i), 16);
+            if (d < 0 || str.charAt(i) > 'f') {
+                return null;
+            }
+            v = (v << 4) | d;
         }
+        switch (len) {
+        case 3:
+            return new Color(((v >> 8) & 0xF) * 17, ((v >> 4) & 0xF) * 17, (v & 0xF) * 17);
+        case 4:
+            return new Color(((v >> 8) & 0xF) * 17, ((v >> 4) & 0xF) * 17, (v & 0xF) * 17, ((v >> 12) & 0xF) * 17);
+        case 6:
+            return new Color((v >> 16) & 0xFF, (v >> 8) & 0xFF, v & 0xFF);
+        default:
+            return new Color((v >> 16) & 0xFF, (v >> 8) & 0xFF, v & 0xFF, v >>> 24);
+        }
+    }
 
-        // // RGBA值: rgba(6,6,6,255)
-        // p =
-        // Pattern.compile("^RGBA\\s*[(]\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,\\s*(\\d+)\\s*[)]$");
-        // m = p.matcher(str);
-        // if (m.find()) {
-        // return new Color(parseInt(m.group(1), 10),
-        // parseInt(m.group(2), 10),
-        // parseInt(m.group(3), 10),
-        // parseInt(m.group(4), 10));
-        // }
+    /**
+     * RGB值: rgb(255,33,89)，RGBA值: rgba(6,6,6,0.9)
+     */
+    private static Color parseFunction(String str, int from, int to) {
+        boolean alpha;
+        if (str.regionMatches(true, from, "RGBA", 0, 4)) {
+            alpha = true;
+            from += 4;
+        } else if (str.regionMatches(true, from, "RGB", 0, 3)) {
+            alpha = false;
+            from += 3;
+        } else {
+            return null;
+        }
+        int[] pos = {skipSpace(str, from, to)};
+        if (pos[0] >= to || str.charAt(pos[0]++) != '(') {
+            return null;
+        }
+        int r = parseComponent(str, pos, to, ',');
+        int g = r < 0 ? -1 : parseComponent(str, pos, to, ',');
+        int b = g < 0 ? -1 : parseComponent(str, pos, to, alpha ? ',' : ')');
+        if (b < 0) {
+            return null;
+        }
+        int a = 255;
+        if (alpha) {
+            int i = skipSpace(str, pos[0], to);
+            int start = i;
+            i = skipDigits(str, i, to);
+            // 只允许 "0.9" 这种一位整数的小数，或者纯整数
+            if (i - start == 1 && i < to && str.charAt(i) == '.') {
+                int frac = skipDigits(str, i + 1, to);
+                if (frac == i + 1) {
+                    return null;
+                }
+                i = frac;
+            }
+            if (i == start) {
+                return null;
+            }
+            a = (int) (255.0f * Float.parseFloat(str.substring(start, i)));
+            i = skipSpace(str, i, to);
+            if (i >= to || str.charAt(i++) != ')') {
+                return null;
+            }
+            pos[0] = i;
+        }
+        if (pos[0] != to) {
+            return null;
+        }
+        return new Color(r, g, b, a);
+    }
 
-        // RGBA值: rgba(6,6,6,0.9)
-        String reg6 = "^RGBA\\s*[(]\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,\\s*((\\d[.])?\\d+)\\s*[)]$";
-        p = Pattern.compile(reg6);
-        m = p.matcher(str);
-        if (m.find()) {
-            float alpha = Float.parseFloat(m.group(4));
+    /**
+     * 读取一个十进制分量以及其后的分隔符，pos[0] 会移动到分隔符之后
+     * 
+     * @return 分量值，超过 255 时为 256（交给 Color 报错），格式不对时为 -1
+     */
+    private static int parseComponent(String str, int[] pos, int to, char end) {
+        int i = skipSpace(str, pos[0], to);
+        int start = i;
+        int v = 0;
+        for (; i < to; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            v = Math.min(256, v * 10 + (c - '0'));
+        }
+        if (i == start) {
+            return -1;
+        }
+        i = skipSpace(str, i, to);
+        if (i >= to || str.charAt(i) != end) {
+            return -1;
+        }
+        pos[0] = i + 1;
+        return v;
+    }
 
-            return new Color(parseInt(m.group(1), 10),
-                             parseInt(m.group(2), 10),
-                             parseInt(m.group(3), 10),
-                             (int) (255.0f * alpha));
+    private static int skipDigits(String str, int i, int to) {
+        while (i < to && str.charAt(i) >= '0' && str.charAt(i) <= '9') {
+            i++;
         }
+        return i;
+    }
 
-        // 全都匹配不上，返回黑色
-        return Color.BLACK;
+    /**
+     * 跳过正则中 \s 代表的空白字符
+     */
+    private static int skipSpace(String str, int i, int to) {
+        for (; i < to; i++) {
+            char c = str.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') {
+                break;
+            }
+        }
+        return i;
     }
 
     /**
@@ -193,15 +286,103 @@ public final class Colors {
      * @return RGB值数组
      */
     public static int[] getRGB(int pixel) {
-        int r = (pixel >> 16) & 0xff;
-        int g = (pixel >> 8) & 0xff;
-        int b = pixel & 0xff;
-        return new int[]{r, g, b};
+        return new int[]{red(pixel), green(pixel), blue(pixel)};
     }
 
     public static int getAlpha(int pixel) {
-        ColorModel cm = ColorModel.getRGBdefault();
-        return cm.getAlpha(pixel);
+        return alpha(pixel);
+    }
+
+    /*
+     * 以下是直接在 ARGB 像素值上做运算的方法，不分配任何对象，适合在逐点循环中使用
+     */
+
+    /**
+     * @param pixel
+     *            ARGB 像素值
+     * @return 红色分量 0-255
+     */
+    public static int red(int pixel) {
+        return (pixel >> 16) & 0xff;
+    }
+
+    /**
+     * @param pixel
+     *            ARGB 像素值
+     * @return 绿色分量 0-255
+     */
+    public static int green(int pixel) {
+        return (pixel >> 8) & 0xff;
+    }
+
+    /**
+     * @param pixel
+     *            ARGB 像素值
+     * @return 蓝色分量 0-255
+     */
+    public static int blue(int pixel) {
+        return pixel & 0xff;
+    }
+
+    /**
+     * @param pixel
+     *            ARGB 像素值
+     * @return 透明度 0-255
+     */
+    public static int alpha(int pixel) {
+        return pixel >>> 24;
+    }
+
+    /**
+     * 将各分量组合成不透明的像素值，各分量只取低 8 位
+     * 
+     * @return ARGB 像素值，透明度为 255
+     */
+    public static int pack(int r, int g, int b) {
+        return 0xff000000 | ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+    }
+
+    /**
+     * 将各分量组合成像素值，各分量只取低 8 位
+     * 
+     * @return ARGB 像素值
+     */
+    public static int pack(int a, int r, int g, int b) {
+        return ((a & 0xff) << 24) | ((r & 0xff) << 16) | ((g & 0xff) << 8) | (b & 0xff);
+    }
+
+    /**
+     * 加权法计算亮度(YUV中的Y)，整数运算，是 0.3 * r + 0.59 * g + 0.11 * b 精确的向下取整
+     * 
+     * @param pixel
+     *            ARGB 像素值
+     * @return 亮度值 0-255
+     */
+    public static int luminance(int pixel) {
+        return (300 * red(pixel) + 590 * green(pixel) + 110 * blue(pixel)) / 1000;
+    }
+
+    /**
+     * 灰度像素值，三个分量都是亮度值，透明度为 0
+     * 
+     * @param pixel
+     *            ARGB 像素值
+     * @return 灰度像素值
+     */
+    public static int gray(int pixel) {
+        int y = luminance(pixel);
+        return (y << 16) | (y << 8) | y;
+    }
+
+    /**
+     * 两个像素点正片叠底
+     * 
+     * @return 不透明的 ARGB 像素值
+     */
+    public static int multiply(int pixel1, int pixel2) {
+        return pack(red(pixel1) * red(pixel2) / 255,
+                    green(pixel1) * green(pixel2) / 255,
+                    blue(pixel1) * blue(pixel2) / 255);
     }
 
     /**
@@ -216,8 +397,7 @@ public final class Colors {
      * @return 亮度值
      */
     public static int getLuminance(BufferedImage srcIm, int x, int y) {
-        int[] rgb = getRGB(srcIm, x, y);
-        return (int) (0.3 * rgb[0] + 0.59 * rgb[1] + 0.11 * rgb[2]); // 加权法
+        return luminance(srcIm.getRGB(x, y)); // 加权法
     }
 
     /**
@@ -232,8 +412,8 @@ public final class Colors {
      * @return 亮度值
      */
     public static double getLuminanceDouble(BufferedImage srcIm, int x, int y) {
-        int[] rgb = getRGB(srcIm, x, y);
-        return 0.3 * rgb[0] + 0.59 * rgb[1] + 0.11 * rgb[2]; // 加权法
+        int pixel = srcIm.getRGB(x, y);
+        return 0.3 * red(pixel) + 0.59 * green(pixel) + 0.11 * blue(pixel); // 加权法
     }
 
     /**
@@ -248,12 +428,7 @@ public final class Colors {
      * @return 灰度值
      */
     public static int getGray(BufferedImage srcIm, int x, int y) {
-        int grayValue = getLuminance(srcIm, x, y);
-        int newPixel = 0;
-        newPixel = (grayValue << 16) & 0x00ff0000 | (newPixel & 0xff00ffff);
-        newPixel = (grayValue << 8) & 0x0000ff00 | (newPixel & 0xffff00ff);
-        newPixel = (grayValue) & 0x000000ff | (newPixel & 0xffffff00);
-        return newPixel;
+        return gray(srcIm.getRGB(x, y));
     }
 
     /**
@@ -266,12 +441,439 @@ public final class Colors {
      * @return 新像素点值
      */
     public static int getMultiply(int pixel1, int pixel2) {
-        int[] rgb1 = getRGB(pixel1);
-        int[] rgb2 = getRGB(pixel2);
-        int r = rgb1[0] * rgb2[0] / 255;
-        int g = rgb1[1] * rgb2[1] / 255;
-        int b = rgb1[2] * rgb2[2] / 255;
-        return new Color(r, g, b).getRGB();
+        return multiply(pixel1, pixel2);
+    }
+
+    /**
+     * 整张图片转灰度，同逐点调用 {@link #getGray(BufferedImage, int, int)}
+     * <p>
+     * 直接处理像素数组，按行分段并行，带透明通道的图片保留透明度
+     * 
+     * @param srcIm
+     *            源图片
+     * @return 新的灰度图片
+     */
+    public static BufferedImage toGray(BufferedImage srcIm) {
+        final int[] src = pixels(srcIm);
+        final BufferedImage tarIm = createLike(srcIm);
+        final int[] tar = pixels(tarIm);
+        final int alpha = srcIm.getColorModel().hasAlpha() ? 0xff000000 : 0;
+        ImageUtils.forEachRowBand(srcIm.getHeight(), srcIm.getWidth(), (from, to) -> {
+            for (int i = from * srcIm.getWidth(), end = to * srcIm.getWidth(); i < end; i++) {
+                int p = src[i];
+                tar[i] = (p & alpha) | gray(p);
+            }
+        });
+        return tarIm;
+    }
+
+    /**
+     * 整张图片的亮度值(YUV中的Y)，同逐点调用 {@link #getLuminance(BufferedImage, int, int)}
+     * 
+     * @param srcIm
+     *            源图片
+     * @return 按行排列的亮度值，长度为 宽 * 高，取值 0-255
+     */
+    public static int[] luminanceMap(BufferedImage srcIm) {
+        final int[] src = pixels(srcIm);
+        final int[] lum = new int[src.length];
+        final int width = srcIm.getWidth();
+        ImageUtils.forEachRowBand(srcIm.getHeight(), width, (from, to) -> {
+            for (int i = from * width, end = to * width; i < end; i++) {
+                lum[i] = luminance(src[i]);
+            }
+        });
+        return lum;
+    }
+
+    /**
+     * 两张同样大小的图片正片叠底，结果与逐点调用 {@link #getMultiply(int, int)} 相同
+     * 
+     * @param im1
+     *            图片1
+     * @param im2
+     *            图片2
+     * @return 新图片
+     */
+    public static BufferedImage multiply(BufferedImage im1, BufferedImage im2) {
+        if (im1.getWidth() != im2.getWidth() || im1.getHeight() != im2.getHeight()) {
+            throw Lang.makeThrow("Image size mismatch: %dx%d vs %dx%d",
+                                 im1.getWidth(), im1.getHeight(), im2.getWidth(), im2.getHeight());
+        }
+        final int[] src1 = pixels(im1);
+        final int[] src2 = pixels(im2);
+        final BufferedImage tarIm = new BufferedImage(im1.getWidth(), im1.getHeight(), BufferedImage.TYPE_INT_RGB);
+        final int[] tar = pixels(tarIm);
+        final int width = im1.getWidth();
+        ImageUtils.forEachRowBand(im1.getHeight(), width, (from, to) -> {
+            for (int i = from * width, end = to * width; i < end; i++) {
+                tar[i] = multiply(src1[i], src2[i]) & 0xffffff;
+            }
+        });
+        return tarIm;
+    }
+
+    /**
+     * 二值化，亮度不小于阈值的点变为白色，其他变为黑色
+     * 
+     * @param srcIm
+     *            源图片
+     * @param level
+     *            阈值 0-255
+     * @return 新的黑白图片
+     */
+    public static BufferedImage threshold(BufferedImage srcIm, final int level) {
+        final int[] src = pixels(srcIm);
+        final BufferedImage tarIm = createLike(srcIm);
+        final int[] tar = pixels(tarIm);
+        final int alpha = srcIm.getColorModel().hasAlpha() ? 0xff000000 : 0;
+        final int width = srcIm.getWidth();
+        ImageUtils.forEachRowBand(srcIm.getHeight(), width, (from, to) -> {
+            for (int i = from * width, end = to * width; i < end; i++) {
+                int p = src[i];
+                tar[i] = (p & alpha) | (luminance(p) >= level ? 0xffffff : 0);
+            }
+        });
+        return tarIm;
+    }
+
+    /**
+     * 反色，透明度不变
+     * 
+     * @param srcIm
+     *            源图片
+     * @return 新图片
+     */
+    public static BufferedImage invert(BufferedImage srcIm) {
+        final int[] src = pixels(srcIm);
+        final BufferedImage tarIm = createLike(srcIm);
+        final int[] tar = pixels(tarIm);
+        final int alpha = srcIm.getColorModel().hasAlpha() ? 0xff000000 : 0;
+        final int width = srcIm.getWidth();
+        ImageUtils.forEachRowBand(srcIm.getHeight(), width, (from, to) -> {
+            for (int i = from * width, end = to * width; i < end; i++) {
+                int p = src[i];
+                tar[i] = (p & alpha) | (~p & 0xffffff);
+            }
+        });
+        return tarIm;
+    }
+
+    /**
+     * 量化直方图每个通道保留的位数
+     */
+    private static final int HIST_BITS = 5;
+
+    private static final int HIST_SIDE = 1 << HIST_BITS;
+
+    /**
+     * 用中位切分法把图片量化成索引色图片，颜色少的图片写成 PNG 时体积会小很多
+     * <p>
+     * 颜色直方图按行分段并行统计，源图片带透明通道时，透明度小于 128 的点映射到一个专门的透明色
+     * 
+     * <pre>
+     * String base64 = ImageUtils.writeBase64String(Colors.quantize(img, 64, true));
+     * </pre>
+     * 
+     * @param srcIm
+     *            源图片
+     * @param colors
+     *            调色板的颜色数，2-256，包括透明色
+     * @param dither
+     *            是否用 Floyd-Steinberg 误差扩散抖动，渐变多的图片效果更好，但 PNG 压缩率会低一些
+     * @return TYPE_BYTE_INDEXED 图片
+     */
+    public static BufferedImage quantize(BufferedImage srcIm, int colors, boolean dither) {
+        colors = Math.max(2, Math.min(256, colors));
+        final int width = srcIm.getWidth();
+        final int height = srcIm.getHeight();
+        final int[] src = pixels(srcIm);
+        final boolean hasAlpha = srcIm.getColorModel().hasAlpha();
+
+        // 每个格子依次存放 点数, r 总和, g 总和, b 总和
+        final long[] hist = new long[HIST_SIDE * HIST_SIDE * HIST_SIDE * 4];
+        final boolean[] transparent = new boolean[1];
+        int chunks = Math.max(1, Math.min(height, ForkJoinPool.getCommonPoolParallelism() * 2));
+        final int rowsPerChunk = (height + chunks - 1) / chunks;
+        IntStream.range(0, chunks).parallel().forEach(c -> {
+            long[] local = new long[hist.length];
+            boolean trans = false;
+            for (int i = c * rowsPerChunk * width, end = Math.min(height, (c + 1) * rowsPerChunk) * width; i < end; i++) {
+                int p = src[i];
+                if (hasAlpha && alpha(p) < 128) {
+                    trans = true;
+                    continue;
+                }
+                int k = bin(p) << 2;
+                local[k]++;
+                local[k + 1] += red(p);
+                local[k + 2] += green(p);
+                local[k + 3] += blue(p);
+            }
+            synchronized (hist) {
+                for (int k = 0; k < local.length; k++) {
+                    hist[k] += local[k];
+                }
+                transparent[0] |= trans;
+            }
+        });
+
+        List<int[]> boxes = medianCut(hist, transparent[0] ? colors - 1 : colors);
+
+        // 调色板以及 格子 -> 调色板索引 的映射
+        int size = boxes.size() + (transparent[0] ? 1 : 0);
+        byte[] rs = new byte[size];
+        byte[] gs = new byte[size];
+        byte[] bs = new byte[size];
+        int[] palette = new int[boxes.size()];
+        final int[] lut = new int[HIST_SIDE * HIST_SIDE * HIST_SIDE];
+        Arrays.fill(lut, -1);
+        for (int n = 0; n < boxes.size(); n++) {
+            int[] box = boxes.get(n);
+            long count = 0, r = 0, g = 0, b = 0;
+            for (int ri = box[0]; ri <= box[1]; ri++) {
+                for (int gi = box[2]; gi <= box[3]; gi++) {
+                    for (int bi = box[4]; bi <= box[5]; bi++) {
+                        int k = (ri << (2 * HIST_BITS)) | (gi << HIST_BITS) | bi;
+                        if (hist[k << 2] > 0) {
+                            lut[k] = n;
+                            count += hist[k << 2];
+                            r += hist[(k << 2) + 1];
+                            g += hist[(k << 2) + 2];
+                            b += hist[(k << 2) + 3];
+                        }
+                    }
+                }
+            }
+            palette[n] = pack((int) ((r + count / 2) / count), (int) ((g + count / 2) / count), (int) ((b + count / 2) / count));
+            rs[n] = (byte) red(palette[n]);
+            gs[n] = (byte) green(palette[n]);
+            bs[n] = (byte) blue(palette[n]);
+        }
+        final int transIndex = transparent[0] ? size - 1 : -1;
+        IndexColorModel icm = new IndexColorModel(8, size, rs, gs, bs, transIndex);
+        BufferedImage tarIm = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, icm);
+        final byte[] tar = ((DataBufferByte) tarIm.getRaster().getDataBuffer()).getData();
+
+        if (palette.length == 0) {
+            Arrays.fill(tar, (byte) transIndex);
+            return tarIm;
+        }
+        if (dither) {
+            // 抖动后的颜色可能落在原图没有的格子里，这些格子取最近的调色板颜色
+            IntStream.range(0, lut.length).parallel().forEach(k -> {
+                if (lut[k] < 0) {
+                    lut[k] = nearest(palette, binCenter(k));
+                }
+            });
+            ditherFloydSteinberg(src, width, height, hasAlpha, lut, palette, transIndex, tar);
+        } else {
+            ImageUtils.forEachRowBand(height, width, (from, to) -> {
+                for (int i = from * width, end = to * width; i < end; i++) {
+                    int p = src[i];
+                    tar[i] = (byte) (hasAlpha && alpha(p) < 128 ? transIndex : lut[bin(p)]);
+                }
+            });
+        }
+        return tarIm;
+    }
+
+    private static int bin(int pixel) {
+        int shift = 8 - HIST_BITS;
+        return ((red(pixel) >> shift) << (2 * HIST_BITS)) | ((green(pixel) >> shift) << HIST_BITS) | (blue(pixel) >> shift);
+    }
+
+    private static int binCenter(int k) {
+        int shift = 8 - HIST_BITS;
+        int half = 1 << (shift - 1);
+        return pack((((k >> (2 * HIST_BITS)) & (HIST_SIDE - 1)) << shift) | half,
+                    (((k >> HIST_BITS) & (HIST_SIDE - 1)) << shift) | half,
+                    ((k & (HIST_SIDE - 1)) << shift) | half);
+    }
+
+    private static int nearest(int[] palette, int pixel) {
+        int best = 0;
+        int min = Integer.MAX_VALUE;
+        for (int n = 0; n < palette.length; n++) {
+            int dr = red(palette[n]) - red(pixel);
+            int dg = green(palette[n]) - green(pixel);
+            int db = blue(palette[n]) - blue(pixel);
+            int d = dr * dr + dg * dg + db * db;
+            if (d < min) {
+                min = d;
+                best = n;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 中位切分。每个盒子是 {rMin, rMax, gMin, gMax, bMin, bMax, 点数}，每次切开点数最多的盒子的最长边
+     */
+    private static List<int[]> medianCut(long[] hist, int colors) {
+        List<int[]> boxes = new ArrayList<int[]>();
+        int[] all = shrink(hist, new int[]{0, HIST_SIDE - 1, 0, HIST_SIDE - 1, 0, HIST_SIDE - 1, 0});
+        if (all == null) {
+            return boxes;
+        }
+        boxes.add(all);
+        while (boxes.size() < colors) {
+            int pick = -1;
+            for (int n = 0; n < boxes.size(); n++) {
+                int[] box = boxes.get(n);
+                boolean splittable = box[0] < box[1] || box[2] < box[3] || box[4] < box[5];
+                if (splittable && (pick < 0 || box[6] > boxes.get(pick)[6])) {
+                    pick = n;
+                }
+            }
+            if (pick < 0) {
+                break;
+            }
+            int[] box = boxes.get(pick);
+            // 最长边
+            int axis = 0;
+            for (int d = 1; d < 3; d++) {
+                if (box[d * 2 + 1] - box[d * 2] > box[axis * 2 + 1] - box[axis * 2]) {
+                    axis = d;
+                }
+            }
+            // 沿最长边累计点数，找到刚好过半的位置
+            int lo = box[axis * 2];
+            int hi = box[axis * 2 + 1];
+            long[] marginal = new long[hi - lo + 1];
+            for (int ri = box[0]; ri <= box[1]; ri++) {
+                for (int gi = box[2]; gi <= box[3]; gi++) {
+                    for (int bi = box[4]; bi <= box[5]; bi++) {
+                        int v = axis == 0 ? ri : axis == 1 ? gi : bi;
+                        marginal[v - lo] += hist[((ri << (2 * HIST_BITS)) | (gi << HIST_BITS) | bi) << 2];
+                    }
+                }
+            }
+            long half = box[6] / 2;
+            long sum = 0;
+            int cut = lo;
+            for (; cut < hi - 1; cut++) {
+                sum += marginal[cut - lo];
+                if (sum >= half) {
+                    break;
+                }
+            }
+            int[] left = box.clone();
+            int[] right = box.clone();
+            left[axis * 2 + 1] = cut;
+            right[axis * 2] = cut + 1;
+            boxes.set(pick, shrink(hist, left));
+            boxes.add(shrink(hist, right));
+        }
+        return boxes;
+    }
+
+    /**
+     * 把盒子收缩到刚好包住有点的格子，并重新统计点数。盒子里没有点时返回 null
+     */
+    private static int[] shrink(long[] hist, int[] box) {
+        int[] r = {HIST_SIDE, -1, HIST_SIDE, -1, HIST_SIDE, -1, 0};
+        long count = 0;
+        for (int ri = box[0]; ri <= box[1]; ri++) {
+            for (int gi = box[2]; gi <= box[3]; gi++) {
+                for (int bi = box[4]; bi <= box[5]; bi++) {
+                    long c = hist[((ri << (2 * HIST_BITS)) | (gi << HIST_BITS) | bi) << 2];
+                    if (c > 0) {
+                        count += c;
+                        r[0] = Math.min(r[0], ri);
+                        r[1] = Math.max(r[1], ri);
+                        r[2] = Math.min(r[2], gi);
+                        r[3] = Math.max(r[3], gi);
+                        r[4] = Math.min(r[4], bi);
+                        r[5] = Math.max(r[5], bi);
+                    }
+                }
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        r[6] = (int) Math.min(Integer.MAX_VALUE, count);
+        return r;
+    }
+
+    /**
+     * Floyd-Steinberg 误差扩散，只能逐行顺序处理
+     */
+    private static void ditherFloydSteinberg(int[] src, int width, int height, boolean hasAlpha, int[] lut,
+                                             int[] palette, int transIndex, byte[] tar) {
+        // 当前行和下一行的误差，每个点 3 个通道，左右各多留一个点
+        int[] cur = new int[(width + 2) * 3];
+        int[] next = new int[(width + 2) * 3];
+        for (int y = 0; y < height; y++) {
+            Arrays.fill(next, 0);
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                int p = src[i];
+                if (hasAlpha && alpha(p) < 128) {
+                    tar[i] = (byte) transIndex;
+                    continue;
+                }
+                int e = (x + 1) * 3;
+                int r = clamp(red(p) + (cur[e] >> 4));
+                int g = clamp(green(p) + (cur[e + 1] >> 4));
+                int b = clamp(blue(p) + (cur[e + 2] >> 4));
+                int n = lut[bin(pack(r, g, b))];
+                tar[i] = (byte) n;
+                int q = palette[n];
+                int er = r - red(q);
+                int eg = g - green(q);
+                int eb = b - blue(q);
+                // 右 7/16，左下 3/16，下 5/16，右下 1/16
+                cur[e + 3] += er * 7;
+                cur[e + 4] += eg * 7;
+                cur[e + 5] += eb * 7;
+                next[e - 3] += er * 3;
+                next[e - 2] += eg * 3;
+                next[e - 1] += eb * 3;
+                next[e] += er * 5;
+                next[e + 1] += eg * 5;
+                next[e + 2] += eb * 5;
+                next[e + 3] += er;
+                next[e + 4] += eg;
+                next[e + 5] += eb;
+            }
+            int[] t = cur;
+            cur = next;
+            next = t;
+        }
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+
+    /**
+     * 建立同样大小的 TYPE_INT_RGB 图片，源图片带透明通道时为 TYPE_INT_ARGB
+     */
+    private static BufferedImage createLike(BufferedImage im) {
+        int type = im.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        return new BufferedImage(im.getWidth(), im.getHeight(), type);
+    }
+
+    /**
+     * 取得图片按行排列的 ARGB 像素。
+     * <p>
+     * TYPE_INT_RGB/TYPE_INT_ARGB 且像素连续存放时直接返回底层数组（TYPE_INT_RGB 的高 8 位无意义），否则复制一份
+     */
+    private static int[] pixels(BufferedImage im) {
+        int type = im.getType();
+        if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            WritableRaster raster = im.getRaster();
+            DataBuffer db = raster.getDataBuffer();
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            if (db.getOffset() == 0 && sm.getScanlineStride() == im.getWidth()
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+                && ((DataBufferInt) db).getData().length == im.getWidth() * im.getHeight()) {
+                return ((DataBufferInt) db).getData();
+            }
+        }
+        return im.getRGB(0, 0, im.getWidth(), im.getHeight(), null, 0, im.getWidth());
     }
 
     private Colors() {}
@@ -32,8 +32,12 @@ public class FileUtils {
             if (!f.exists()) {
                 FileUtils.createNewFile(f);
             }
-            // 输入流
-            if (obj instanceof InputStream) {
+            // 文件输入流，输出不加缓冲，才能走 transferTo 零拷贝
+            if (obj instanceof FileInputStream) {
+                Streams.writeAndClose(new FileOutputStream(f), (InputStream) obj);
+            }
+            // 其他输入流，可能每次只读到很少的数据，加缓冲合并写入
+            else if (obj instanceof InputStream) {
                 Streams.writeAndClose(Streams.fileOut(f), (InputStream) obj);
             }
             // 字节数组
@@ -1,15 +1,39 @@
 package com.wyq.utils;
 
+import lombok.extern.slf4j.Slf4j;
+
 import java.awt.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 public class Fonts {
 	
-	private static Map<String, Boolean> fontMap = new HashMap<String, Boolean>();
-	
-	private static String[] _fonts;
-	
+    /**
+     * 缓存的 Font 个数上限，超出后不再缓存，直接创建
+     */
+    private static final int MAX_CACHED = 4096;
+
+    /**
+     * JDK 自带的逻辑字体，任何环境下都可用
+     */
+    private static final String[] logicalFonts = new String[]{Font.DIALOG, Font.DIALOG_INPUT, Font.SANS_SERIF, Font.SERIF, Font.MONOSPACED};
+
+    /**
+     * 当前的字体表。刷新时整体替换，读的一方不需要加锁
+     */
+    private static volatile FontTable table;
+
+    private static final CountDownLatch discovered = new CountDownLatch(1);
+
+    private static final ConcurrentMap<FontKey, Font> cache = new ConcurrentHashMap<FontKey, Font>();
+
     /**
      * 列出了常用操作系统的自带的字体
      */
@@ -137,13 +161,78 @@ public class Fonts {
                                                              "WenQuanYi Zen Hei Mono",
                                                              "WenQuanYi Zen Hei Sharp"};
 
-    static {
-        String[] fonts = fontsRefresh(); // 获得系统字体
-        for (String fnm : fonts) {
-            fontMap.put(fnm, true);
+    /**
+     * 系统字体表，创建后不再修改
+     */
+    private static final class FontTable {
+        /**
+         * 系统中所有字体
+         */
+        final String[] all;
+        final Set<String> exists;
+        /**
+         * commonFonts 中系统里确实存在的字体，去重并保持顺序
+         */
+        final String[] usable;
+
+        FontTable(String[] all) {
+            this.all = all;
+            Set<String> set = new HashSet<String>();
+            Collections.addAll(set, all);
+            this.exists = set;
+            Set<String> common = new LinkedHashSet<String>();
+            for (String name : commonFonts) {
+                if (set.contains(name)) {
+                    common.add(name);
+                }
+            }
+            this.usable = common.toArray(new String[common.size()]);
+        }
+    }
+
+    private static final class FontKey {
+        final String name;
+        final int style;
+        final int size;
+
+        FontKey(String name, int style, int size) {
+            this.name = name;
+            this.style = style;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FontKey)) {
+                return false;
+            }
+            FontKey k = (FontKey) obj;
+            return style == k.style && size == k.size && name.equals(k.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + style) * 31 + size;
         }
     }
 
+    /**
+     * 读取系统字体可能要几百毫秒，在无图形环境下还可能失败，所以先用逻辑字体，在后台线程中读取系统字体
+     */
+    static {
+        table = new FontTable(logicalFonts);
+        Thread t = new Thread(() -> {
+            try {
+                refreshFonts();
+            }
+            finally {
+                discovered.countDown();
+            }
+        }, "fonts-discovery");
+        t.setDaemon(true);
+        t.start();
+    }
+
     /**
      * 获得随机字体
      * 
@@ -154,15 +243,12 @@ public class Fonts {
      * @return 字体
      */
     public static Font random(int style, int size) {
-        Font font = null;
-        while (font == null) {
-            try {
-                int index = R.random(0, commonFonts.length - 1);
-                font = get(commonFonts[index], style, size);
-            }
-            catch (Exception e) {}
+        String[] usable = table.usable;
+        if (usable.length == 0) {
+            // 系统里一个常用字体都没有时，用 JDK 自带的逻辑字体
+            return cached(Font.DIALOG, style, size);
         }
-        return font;
+        return cached(usable[R.random(0, usable.length - 1)], style, size);
     }
 
     /**
@@ -185,7 +271,20 @@ public class Fonts {
             }
             return ff;
         }
-        return new Font(name, style, size);
+        return cached(name, style, size);
+    }
+
+    private static Font cached(String name, int style, int size) {
+        FontKey key = new FontKey(name, style, size);
+        Font font = cache.get(key);
+        if (font == null) {
+            font = new Font(name, style, size);
+            // Font 不可变，并发时重复创建也无妨
+            if (cache.size() < MAX_CACHED) {
+                cache.putIfAbsent(key, font);
+            }
+        }
+        return font;
     }
 
     /**
@@ -196,29 +295,75 @@ public class Fonts {
      * @return 判断结果
      */
     public static boolean exist(String name) {
-        return fontMap.get(name) == null ? false : fontMap.get(name);
+        return name != null && table.exists.contains(name);
     }
 
     private static Font find(String[] fnames, int style, int size) {
         for (String name : fnames) {
             if (exist(name)) {
-                return new Font(name, style, size);
+                return cached(name, style, size);
             }
         }
         return null;
     }
     
-    private static void refreshFonts() {
-        GraphicsEnvironment environment = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        _fonts = environment.getAvailableFontFamilyNames(); // 获得系统字体
+    private static synchronized void refreshFonts() {
+        try {
+            GraphicsEnvironment environment = GraphicsEnvironment.getLocalGraphicsEnvironment();
+            table = new FontTable(environment.getAvailableFontFamilyNames()); // 获得系统字体
+        }
+        catch (Throwable e) {
+            // 缺少 fontconfig 等情况下会抛出 Error，继续使用原来的字体表
+            log.warn("读取系统字体失败，使用{}个已知字体", table.all.length, e);
+        }
     }
     
+    /**
+     * 重新读取系统字体，可以并发调用
+     * 
+     * @return 系统字体
+     */
     public static String[] fontsRefresh() {
         refreshFonts();
-        return fonts();
+        return table.all.clone();
     }
     
+    /**
+     * @return 后台读取系统字体是否已经结束（无论成功与否）
+     */
+    public static boolean isDiscovered() {
+        return discovered.getCount() == 0;
+    }
+
+    /**
+     * 等待后台读取系统字体结束
+     * 
+     * @param timeout
+     *            最长等待时间
+     * @param unit
+     *            时间单位
+     * @return 是否在超时之前结束
+     * @throws InterruptedException
+     */
+    public static boolean awaitDiscovery(long timeout, TimeUnit unit) throws InterruptedException {
+        return discovered.await(timeout, unit);
+    }
+
+    /**
+     * 获得系统字体，后台读取系统字体尚未完成时会等待其完成
+     * <p>
+     * {@link #random(int, int)}、{@link #get(String, int, int)}、{@link #exist(String)} 不会等待，
+     * 读取完成之前只认得逻辑字体
+     * 
+     * @return 系统字体
+     */
     public static String[] fonts() {
-        return _fonts.clone();
+        try {
+            discovered.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return table.all.clone();
     }
 }
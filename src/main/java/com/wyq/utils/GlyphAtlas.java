@@ -0,0 +1,223 @@
+package com.wyq.utils;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 验证码文字的字形缓存
+ * <p>
+ * 每个 (字体, 字符, 旋转角度档位) 第一次用到时，用 Java2D 画一次抗锯齿字形，只保留覆盖率（alpha）蒙版，
+ * 之后按任意颜色直接混合到 TYPE_INT_RGB 画布的像素数组上，不再经过字体光栅化。
+ * 旋转角度归到 {@link #ROTATION_STEP} 度的档位上，与按原角度 drawString 相比，字形的角度最多差 1 度
+ */
+final class GlyphAtlas {
+
+    /**
+     * 旋转角度的档位间隔（度）
+     */
+    static final int ROTATION_STEP = 3;
+
+    /**
+     * 缓存的字形个数上限，超出后新字形不再缓存，直接现画
+     */
+    private static final int MAX_GLYPHS = 32 * 1024;
+
+    /**
+     * 缓存的字体个数上限，超出后新字体的字形不再缓存，直接现画
+     */
+    private static final int MAX_FONTS = 512;
+
+    private static final int BUCKETS = 360 / ROTATION_STEP;
+
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, false);
+
+    private static final ConcurrentMap<Font, FontGlyphs> atlas = new ConcurrentHashMap<Font, FontGlyphs>();
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * 单个字形的覆盖率蒙版，(x, y) 是蒙版左上角相对于字符基线原点的偏移
+     */
+    static final class Glyph {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        final byte[] alpha;
+
+        Glyph(int x, int y, int width, int height, byte[] alpha) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+        }
+    }
+
+    /**
+     * 某个字体下的字形，ASCII 字符按字符分行放在数组里，某个字符第一次用到时才分配它的一行，其他字符放在 Map 里
+     */
+    private static final class FontGlyphs {
+        final Glyph[][] ascii = new Glyph[128][];
+        final ConcurrentMap<Integer, Glyph> others = new ConcurrentHashMap<Integer, Glyph>();
+    }
+
+    /**
+     * 在画布上以 (x, y) 为基线原点、按 degree 度顺时针旋转画一个字符
+     *
+     * @param pixels
+     *            TYPE_INT_RGB 画布的像素数组
+     * @param width
+     *            画布宽度
+     * @param height
+     *            画布高度
+     * @param font
+     *            字体
+     * @param c
+     *            字符
+     * @param degree
+     *            旋转角度，会归到最近的档位上
+     * @param rgb
+     *            文字颜色
+     * @param x
+     *            基线原点横坐标
+     * @param y
+     *            基线原点纵坐标
+     */
+    static void draw(int[] pixels, int width, int height, Font font, char c, int degree, int rgb, int x, int y) {
+        blend(pixels, width, height, glyph(font, c, bucket(degree)), rgb, x, y);
+    }
+
+    /**
+     * @return 角度所在档位，取值 [0, BUCKETS)
+     */
+    static int bucket(int degree) {
+        int d = degree % 360;
+        if (d < 0) {
+            d += 360;
+        }
+        return ((d + ROTATION_STEP / 2) / ROTATION_STEP) % BUCKETS;
+    }
+
+    static Glyph glyph(Font font, char c, int bucket) {
+        FontGlyphs fg = atlas.get(font);
+        if (fg == null) {
+            if (count.get() >= MAX_GLYPHS || atlas.size() >= MAX_FONTS) {
+                return render(font, c, bucket);
+            }
+            FontGlyphs old = atlas.putIfAbsent(font, fg = new FontGlyphs());
+            if (old != null) {
+                fg = old;
+            }
+        }
+        if (c < 128) {
+            Glyph[] row = fg.ascii[c];
+            Glyph g = row == null ? null : row[bucket];
+            if (g == null) {
+                g = render(font, c, bucket);
+                // 字形不可变，重复生成、并发时丢掉一行也只是多画一次，不需要加锁
+                if (count.get() < MAX_GLYPHS) {
+                    if (row == null) {
+                        fg.ascii[c] = row = new Glyph[BUCKETS];
+                    }
+                    row[bucket] = g;
+                    count.incrementAndGet();
+                }
+            }
+            return g;
+        }
+        Integer key = c * BUCKETS + bucket;
+        Glyph g = fg.others.get(key);
+        if (g == null) {
+            g = render(font, c, bucket);
+            if (count.get() < MAX_GLYPHS && fg.others.putIfAbsent(key, g) == null) {
+                count.incrementAndGet();
+            }
+        }
+        return g;
+    }
+
+    /**
+     * 用 Java2D 画出旋转后的字形，取其 alpha 通道作为覆盖率蒙版
+     */
+    private static Glyph render(Font font, char c, int bucket) {
+        String s = String.valueOf(c);
+        double theta = bucket * ROTATION_STEP * Math.PI / 180;
+        Shape outline = font.createGlyphVector(FRC, s).getOutline();
+        Rectangle b = AffineTransform.getRotateInstance(theta).createTransformedShape(outline).getBounds();
+        // 抗锯齿的边缘会超出轮廓，四周各留 2 像素
+        int x0 = b.x - 2;
+        int y0 = b.y - 2;
+        int w = b.width + 4;
+        int h = b.height + 4;
+
+        BufferedImage im = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D gc = im.createGraphics();
+        try {
+            gc.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            gc.setColor(Color.WHITE);
+            gc.setFont(font);
+            gc.translate(-x0, -y0);
+            gc.rotate(theta);
+            gc.drawString(s, 0, 0);
+        }
+        finally {
+            gc.dispose();
+        }
+
+        int[] argb = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+        byte[] alpha = new byte[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            alpha[i] = (byte) (argb[i] >>> 24);
+        }
+        return new Glyph(x0, y0, w, h, alpha);
+    }
+
+    /**
+     * 按覆盖率将文字颜色混合到画布上，超出画布的部分裁掉
+     */
+    private static void blend(int[] pixels, int width, int height, Glyph g, int rgb, int x, int y) {
+        int left = x + g.x;
+        int top = y + g.y;
+        int i0 = Math.max(0, -left);
+        int j0 = Math.max(0, -top);
+        int i1 = Math.min(g.width, width - left);
+        int j1 = Math.min(g.height, height - top);
+        int cr = (rgb >> 16) & 0xff;
+        int cg = (rgb >> 8) & 0xff;
+        int cb = rgb & 0xff;
+        for (int j = j0; j < j1; j++) {
+            int m = j * g.width + i0;
+            int p = (top + j) * width + left + i0;
+            for (int i = i0; i < i1; i++, m++, p++) {
+                int a = g.alpha[m] & 0xff;
+                if (a == 0) {
+                    continue;
+                }
+                if (a == 0xff) {
+                    pixels[p] = rgb & 0xffffff;
+                    continue;
+                }
+                int d = pixels[p];
+                int na = 0xff - a;
+                int r = div255(cr * a + ((d >> 16) & 0xff) * na);
+                int gg = div255(cg * a + ((d >> 8) & 0xff) * na);
+                int b = div255(cb * a + (d & 0xff) * na);
+                pixels[p] = (r << 16) | (gg << 8) | b;
+            }
+        }
+    }
+
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+
+    private GlyphAtlas() {}
+}
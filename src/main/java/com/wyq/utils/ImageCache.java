@@ -0,0 +1,346 @@
+package com.wyq.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 派生图片缓存，以源图片内容的 SHA-256 加上操作描述作为键，缓存缩放、转码等操作的结果
+ * <p>
+ * 分为两级：内存中按字节数限制的 LRU，以及磁盘上按总大小限制、淘汰最久未用文件的目录。
+ * 同一个键同时只会计算一次，并发的相同请求等待同一个结果
+ *
+ * <pre>
+ * ImageCache cache = new ImageCache(64 * 1024 * 1024, new File("/data/thumbs"), 2L * 1024 * 1024 * 1024);
+ * byte[] thumb = cache.get(photo, "compressWidth(400)", p -&gt; ImageUtils.compressWidth(p, 400));
+ * </pre>
+ */
+@Slf4j
+public class ImageCache {
+
+    /**
+     * 对源图片字节做的操作
+     */
+    public interface Transform {
+        byte[] apply(byte[] source) throws IOException;
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long memoryLimit;
+    private long memoryBytes;
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    private final File dir;
+    private final long diskLimit;
+    private long diskBytes;
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> inflight = new ConcurrentHashMap<String, CompletableFuture<byte[]>>();
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+
+    /**
+     * 只使用内存的缓存
+     *
+     * @param memoryLimit
+     *            内存中缓存的字节数上限
+     */
+    public ImageCache(long memoryLimit) {
+        this(memoryLimit, null, 0);
+    }
+
+    /**
+     * @param memoryLimit
+     *            内存中缓存的字节数上限
+     * @param dir
+     *            磁盘缓存目录，为 null 表示不使用磁盘缓存。目录中已有的缓存文件会被继续使用
+     * @param diskLimit
+     *            磁盘缓存的字节数上限
+     */
+    public ImageCache(long memoryLimit, File dir, long diskLimit) {
+        this.memoryLimit = memoryLimit;
+        this.dir = dir;
+        this.diskLimit = diskLimit;
+        if (dir != null) {
+            FileUtils.makeDir(dir);
+            loadDisk();
+        }
+    }
+
+    /**
+     * 按最后修改时间恢复磁盘缓存的访问顺序
+     */
+    private void loadDisk() {
+        File[] files = dir.listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        synchronized (disk) {
+            for (File f : files) {
+                if (f.getName().endsWith(".tmp")) {
+                    f.delete();
+                    continue;
+                }
+                disk.put(f.getName(), f.length());
+                diskBytes += f.length();
+            }
+            trimDisk();
+        }
+    }
+
+    /**
+     * 取得派生图片，缓存中没有时调用 transform 计算并放入缓存
+     *
+     * @param source
+     *            源图片字节
+     * @param operation
+     *            操作描述，相同的源图片和操作描述必须得到相同的结果，如 "compressWidth(400)"、"writeJpeg(q=0.8)"
+     * @param transform
+     *            实际的操作
+     * @return 派生图片字节，不要修改其内容
+     */
+    public byte[] get(byte[] source, String operation, Transform transform) {
+        String key = key(source, operation);
+        byte[] data = getCached(key);
+        if (data != null) {
+            return data;
+        }
+
+        CompletableFuture<byte[]> f = new CompletableFuture<byte[]>();
+        CompletableFuture<byte[]> running = inflight.putIfAbsent(key, f);
+        if (running != null) {
+            return join(running);
+        }
+        try {
+            // 拿到计算权之前，可能刚好有别的线程算完
+            data = getCached(key);
+            if (data == null) {
+                misses.incrementAndGet();
+                data = transform.apply(source);
+                put(key, data);
+            }
+            f.complete(data);
+            return data;
+        }
+        catch (IOException e) {
+            f.completeExceptionally(e);
+            throw Lang.wrapThrow(e);
+        }
+        catch (RuntimeException | Error e) {
+            // Error（如大图 OOM）也要通知等待同一结果的线程，否则它们会一直阻塞在 join 上
+            f.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            inflight.remove(key, f);
+        }
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> f) {
+        try {
+            return f.join();
+        }
+        catch (RuntimeException e) {
+            throw Lang.wrapThrow(e.getCause() == null ? e : e.getCause());
+        }
+    }
+
+    private byte[] getCached(String key) {
+        byte[] data;
+        synchronized (memory) {
+            data = memory.get(key);
+        }
+        if (data != null) {
+            memoryHits.incrementAndGet();
+            return data;
+        }
+        data = readDisk(key);
+        if (data != null) {
+            diskHits.incrementAndGet();
+            putMemory(key, data);
+        }
+        return data;
+    }
+
+    private void put(String key, byte[] data) {
+        putMemory(key, data);
+        writeDisk(key, data);
+    }
+
+    private void putMemory(String key, byte[] data) {
+        if (data.length > memoryLimit) {
+            return;
+        }
+        synchronized (memory) {
+            byte[] old = memory.put(key, data);
+            memoryBytes += data.length - (old == null ? 0 : old.length);
+            Iterator<byte[]> it = memory.values().iterator();
+            while (memoryBytes > memoryLimit && it.hasNext()) {
+                memoryBytes -= it.next().length;
+                it.remove();
+                memoryEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private byte[] readDisk(String key) {
+        if (dir == null) {
+            return null;
+        }
+        String name = fileName(key);
+        synchronized (disk) {
+            if (disk.get(name) == null) {
+                return null;
+            }
+        }
+        File f = new File(dir, name);
+        try {
+            byte[] data = Files.readAllBytes(f.toPath());
+            f.setLastModified(System.currentTimeMillis());
+            return data;
+        }
+        catch (IOException e) {
+            // 文件可能刚被淘汰
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, byte[] data) {
+        if (dir == null || data.length > diskLimit) {
+            return;
+        }
+        String name = fileName(key);
+        File f = new File(dir, name);
+        File tmp = null;
+        try {
+            // 先写临时文件再改名，读的一方不会看到写了一半的文件
+            tmp = File.createTempFile(name, ".tmp", dir);
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            log.warn("写入图片缓存失败: {}", f, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        }
+        synchronized (disk) {
+            Long old = disk.put(name, (long) data.length);
+            diskBytes += data.length - (old == null ? 0 : old);
+            trimDisk();
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+        while (diskBytes > diskLimit && it.hasNext()) {
+            Map.Entry<String, Long> en = it.next();
+            it.remove();
+            diskBytes -= en.getValue();
+            new File(dir, en.getKey()).delete();
+            diskEvictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * 清空内存缓存，磁盘缓存保留
+     */
+    public void clearMemory() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+    }
+
+    private static String key(byte[] source, String operation) {
+        return hex(sha256().digest(source)) + ':' + operation;
+    }
+
+    private static String fileName(String key) {
+        return hex(sha256().digest(key.getBytes(Encoding.CHARSET_UTF8)));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw Lang.wrapThrow(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] cs = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            cs[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            cs[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(cs);
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getMemoryEvictions() {
+        return memoryEvictions.get();
+    }
+
+    public long getDiskEvictions() {
+        return diskEvictions.get();
+    }
+
+    /**
+     * @return 内存中缓存的字节数
+     */
+    public long getMemoryBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    /**
+     * @return 磁盘上缓存的字节数
+     */
+    public long getDiskBytes() {
+        synchronized (disk) {
+            return diskBytes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ImageCache[memoryHits=%d, diskHits=%d, misses=%d, memoryEvictions=%d, diskEvictions=%d, memory=%d/%d, disk=%d/%d]",
+                             getMemoryHits(), getDiskHits(), getMisses(), getMemoryEvictions(), getDiskEvictions(),
+                             getMemoryBytes(), memoryLimit, getDiskBytes(), diskLimit);
+    }
+}
@@ -5,16 +5,37 @@ import org.springframework.util.StringUtils;
 
 import javax.imageio.*;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.FileCacheImageInputStream;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.servlet.ServletResponse;
 import java.awt.*;
-import java.awt.color.ColorSpace;
 import java.awt.geom.AffineTransform;
 import java.awt.image.*;
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
 
 /**
  * 对图像操作的简化 API
@@ -123,44 +144,73 @@ public class ImageUtils {
 
 		// 生成背景
 		BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		drawCaptcha(im, content, userColor, colorBg, (fontStyle, fontSize) -> StringUtils.isEmpty(fontName)
+				? Fonts.random(fontStyle, fontSize) : Fonts.get(fontName, fontStyle, fontSize));
+
+		// 图像扭曲
+		im = twist(im, 1, bgColor);
+		return im;
+	}
+
+	/**
+	 * 验证码文字的字体来源
+	 */
+	interface FontSource {
+		Font get(int style, int size);
+	}
+
+	/**
+	 * 在给定的画布上绘制验证码的背景、干扰线和文字，画布会被整个覆盖
+	 * 
+	 * @param im
+	 *            TYPE_INT_RGB 画布
+	 * @param content
+	 *            文字内容
+	 * @param userColor
+	 *            文字颜色，null 表示随机
+	 * @param colorBg
+	 *            背景颜色
+	 * @param fonts
+	 *            每个字符的字体来源
+	 */
+	static void drawCaptcha(BufferedImage im, String content, Color userColor, Color colorBg, FontSource fonts) {
+		int width = im.getWidth();
+		int height = im.getHeight();
+		boolean isChinese = StringVerification.isChineseCharacter(content.charAt(0));
 		Graphics2D gc = im.createGraphics();
-		gc.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		gc.setBackground(colorBg);
-		gc.clearRect(0, 0, width, height);
-
-		// 加入干扰线
-		for (int i = 0; i < 7; i++) {
-			gc.setColor(userColor == null ? Colors.randomColor(5, 250) : userColor);
-			int x = R.random(0, width);
-			int y = R.random(0, height);
-			int x1 = R.random(0, width);
-			int y1 = R.random(0, height);
-			gc.drawLine(x, y, x1, y1);
+		try {
+			gc.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			gc.setBackground(colorBg);
+			gc.clearRect(0, 0, width, height);
+
+			// 加入干扰线
+			for (int i = 0; i < 7; i++) {
+				gc.setColor(userColor == null ? Colors.randomColor(5, 250) : userColor);
+				int x = R.random(0, width);
+				int y = R.random(0, height);
+				int x1 = R.random(0, width);
+				int y1 = R.random(0, height);
+				gc.drawLine(x, y, x1, y1);
+			}
+		}
+		finally {
+			gc.dispose();
 		}
 
-		// 写入文字
+		// 写入文字，字形从缓存中直接混合到像素上
+		int[] pixels = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
 		int rx = 10;
 		int ry = isChinese ? height - 8 : height - 10;
 		for (int i = 0; i < content.length(); i++) {
 			int fontStyle = R.random(0, 3);
 			int fontSize = R.random(height - 10, height - 5);
-			Font textFont = StringUtils.isEmpty(fontName) ? Fonts.random(fontStyle, fontSize)
-					: Fonts.get(fontName, fontStyle, fontSize);
-			gc.setColor(userColor == null ? Colors.randomColor(10, 250) : userColor);
-			gc.setFont(textFont);
+			Font textFont = fonts.get(fontStyle, fontSize);
+			Color color = userColor == null ? Colors.randomColor(10, 250) : userColor;
 			// 设置字体旋转角度
 			int degree = R.random(0, 64) % 30;
-			// 正向角度
-			gc.rotate(degree * Math.PI / 180, rx, ry);
-			gc.drawString(content.charAt(i) + "", rx, ry);
-			// 反向角度
-			gc.rotate(-degree * Math.PI / 180, rx, ry);
+			GlyphAtlas.draw(pixels, width, height, textFont, content.charAt(i), degree, color.getRGB(), rx, ry);
 			rx += (isChinese ? 5 : 0) + width / (content.length() + 2);
 		}
-
-		// 图像扭曲
-		im = twist(im, 1, bgColor);
-		return im;
 	}
 
 	/**
@@ -184,22 +234,75 @@ public class ImageUtils {
 		int width = bufImg.getWidth();
 		int height = bufImg.getHeight();
 
+		int bg = (StringUtils.isEmpty(bgColor) ? Colors.randomColor() : Colors.as(bgColor)).getRGB() & 0xffffff;
+
 		BufferedImage tarIm = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		Graphics2D gc = tarIm.createGraphics();
-		gc.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		gc.setBackground(StringUtils.isEmpty(bgColor) ? Colors.randomColor() : Colors.as(bgColor));
-		gc.clearRect(0, 0, width, height);
-
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				int nX = pos4twist(twistRank, phase, period, height, i, j);
-				int nY = j;
-				if (nX >= 0 && nX < width && nY >= 0 && nY < height) {
-					tarIm.setRGB(nX, nY, bufImg.getRGB(i, j));
+		twist(bufImg, tarIm, twistRank, period, phase, bg);
+		return tarIm;
+	}
+
+	/**
+	 * 将源图片扭曲后写入目标图片，目标图片必须是同样大小的 TYPE_INT_RGB 图片
+	 * 
+	 * @param bufImg
+	 *            源图片
+	 * @param tarIm
+	 *            目标图片
+	 * @param twistRank
+	 *            扭曲程度
+	 * @param period
+	 *            波形的幅度倍数
+	 * @param phase
+	 *            波形的起始相位
+	 * @param bg
+	 *            露出的底图填充色（RGB）
+	 */
+	static void twist(BufferedImage bufImg, BufferedImage tarIm, double twistRank, double period, double phase, int bg) {
+		int width = bufImg.getWidth();
+		int height = bufImg.getHeight();
+		int[] tar = ((DataBufferInt) tarIm.getRaster().getDataBuffer()).getData();
+
+		// 位移只和行号有关，每行整体平移，先算好每行的偏移量
+		int[] offsets = new int[height];
+		for (int j = 0; j < height; j++) {
+			offsets[j] = pos4twist(twistRank, phase, period, height, 0, j);
+		}
+
+		// 源图是 TYPE_INT_RGB 时直接读底层数组，否则逐行批量取出 RGB
+		WritableRaster srcRaster = bufImg.getRaster();
+		int[] src = null;
+		int srcBase = 0;
+		int srcStride = width;
+		if (bufImg.getType() == BufferedImage.TYPE_INT_RGB
+			&& srcRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+			SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) srcRaster.getSampleModel();
+			src = ((DataBufferInt) srcRaster.getDataBuffer()).getData();
+			srcStride = sm.getScanlineStride();
+			srcBase = srcRaster.getDataBuffer().getOffset()
+					  - srcRaster.getSampleModelTranslateY() * srcStride
+					  - srcRaster.getSampleModelTranslateX();
+		}
+		int[] row = src == null ? new int[width] : null;
+
+		for (int j = 0, q = 0; j < height; j++, q += width) {
+			int dx = offsets[j];
+			int from = Math.max(0, -dx);
+			int to = Math.min(width, width - dx);
+			if (from >= to) {
+				Arrays.fill(tar, q, q + width, bg);
+				continue;
+			}
+			Arrays.fill(tar, q, q + from + dx, bg);
+			Arrays.fill(tar, q + to + dx, q + width, bg);
+			if (src != null) {
+				System.arraycopy(src, srcBase + j * srcStride + from, tar, q + from + dx, to - from);
+			} else {
+				bufImg.getRGB(from, j, to - from, 1, row, 0, width);
+				for (int i = 0, p = q + from + dx; i < to - from; i++) {
+					tar[p++] = row[i] & 0xffffff;
 				}
 			}
 		}
-		return tarIm;
 	}
 
 	private static int pos4twist(double rank, double phase, double period, int hOrW, int xOrY, int yOrX) {
@@ -210,6 +313,8 @@ public class ImageUtils {
 	
 	 /**
      * 将一个图片文件读入内存
+     * <p>
+     * 对于输入流和 URL，直接从流中解码，不再先落地成临时文件。流会被关闭
      * 
      * @param img
      *            图片文件
@@ -232,31 +337,21 @@ public class ImageUtils {
             }
 
             if (img instanceof InputStream) {
-                File tmp = File.createTempFile("tmp_img", ".jpg");
-                FileUtils.write(tmp, img);
-                try {
-                    return read(tmp);
-                }
-                finally {
-                    tmp.delete();
-                }
+                return readStream((InputStream) img);
             }
             throw Lang.makeThrow("Unkown img info!! --> " + img);
         }
         catch (IOException e) {
+            // 输入流和 URL 已经在 readStream 中回退过，这里只需处理文件
             try {
-                InputStream in = null;
                 if (img instanceof File) {
-                    in = new FileInputStream((File) img);
-                }
-                else if (img instanceof URL) {
-                    in = ((URL) img).openStream();
-                }
-                else if (img instanceof InputStream) {
-                    in = (InputStream) img;
-                }
-                if (in != null) {
-                    return readJpeg(in);
+                    ImageInputStream input = new FileImageInputStream((File) img);
+                    try {
+                        return readJpeg(input);
+                    }
+                    finally {
+                        input.close();
+                    }
                 }
             }
             catch (IOException e2) {
@@ -266,6 +361,190 @@ public class ImageUtils {
             // throw Lang.wrapThrow(e);
         }
     }
+
+    /**
+     * 解码时在内存中缓存图片流的上限，超过该大小的部分才会落到缓存文件中
+     */
+    private static final int MEMORY_CACHE_LIMIT = 8 * 1024 * 1024;
+
+    /**
+     * 从输入流中直接解码图片，普通解码失败时，在同一份缓存上回退为 CMYK JPEG 的读取方式
+     * <p>
+     * <b style=color:red>注意</b>，它会关闭输入流
+     */
+    private static BufferedImage readStream(InputStream ins) throws IOException {
+        ImageInputStream input = null;
+        try {
+            input = createImageInputStream(ins);
+            try {
+                return decode(input);
+            }
+            catch (IOException e) {
+                input.seek(0);
+                return readJpeg(input);
+            }
+        }
+        finally {
+            if (input != null) {
+                input.close();
+            }
+            Streams.safeClose(ins);
+        }
+    }
+
+    /**
+     * 为输入流建立一个可回退的图片输入流。
+     * <p>
+     * 不超过 MEMORY_CACHE_LIMIT 的流完全在内存中缓存，更大的流才启用文件缓存。
+     * 输入流被读完，或者返回的图片输入流被关闭时，输入流也会被关闭
+     */
+    private static ImageInputStream createImageInputStream(final InputStream ins) throws IOException {
+        byte[] buf = new byte[8192];
+        int len = 0;
+        while (len < MEMORY_CACHE_LIMIT) {
+            if (len == buf.length) {
+                buf = Arrays.copyOf(buf, Math.min(buf.length << 1, MEMORY_CACHE_LIMIT));
+            }
+            int n = ins.read(buf, len, buf.length - len);
+            if (n == -1) {
+                Streams.safeClose(ins);
+                // 直接在已读的数组上随机读取，不再复制一份到 MemoryCacheImageInputStream 的缓存里
+                return new ByteArrayImageInputStream(buf, len);
+            }
+            len += n;
+        }
+        // 超出内存上限，已读部分拼上剩余的流，交给文件缓存
+        InputStream all = new SequenceInputStream(new ByteArrayInputStream(buf, 0, len), ins);
+        return new FileCacheImageInputStream(all, ImageIO.getCacheDirectory()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    ins.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * 基于字节数组的图片输入流，数据已经全部在内存中，不需要额外的缓存
+     */
+    private static final class ByteArrayImageInputStream extends ImageInputStreamImpl {
+
+        private final byte[] buf;
+
+        private final int length;
+
+        ByteArrayImageInputStream(byte[] buf, int length) {
+            this.buf = buf;
+            this.length = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= length) {
+                return -1;
+            }
+            return buf[(int) streamPos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+            if (streamPos >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - streamPos);
+            System.arraycopy(buf, (int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public boolean isCached() {
+            return true;
+        }
+
+        @Override
+        public boolean isCachedMemory() {
+            return true;
+        }
+    }
+
+    /**
+     * 为各种图片来源打开一个可随机读取的图片输入流，关闭它时会一并关闭由它打开的输入流
+     * 
+     * @param img
+     *            图片文件、文件路径、字节数组、输入流或 URL
+     * @param headerOnly
+     *            是否只需要读取文件头。为 true 时输入流按需读取并缓存在内存中
+     */
+    private static ImageInputStream openImageInputStream(Object img, boolean headerOnly) throws IOException {
+        if (img instanceof CharSequence) {
+            img = FileUtils.checkFile(img.toString());
+        }
+        if (img instanceof File) {
+            return new FileImageInputStream((File) img);
+        }
+        if (img instanceof byte[]) {
+            return new MemoryCacheImageInputStream(new ByteArrayInputStream((byte[]) img));
+        }
+        if (img instanceof URL) {
+            img = ((URL) img).openStream();
+        }
+        if (!(img instanceof InputStream)) {
+            throw Lang.makeThrow("Unkown img info!! --> " + img);
+        }
+        final InputStream ins = (InputStream) img;
+        if (!headerOnly) {
+            return createImageInputStream(ins);
+        }
+        return new MemoryCacheImageInputStream(ins) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    ins.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * 用第一个匹配的 ImageReader 解码，不允许 reader 丢弃已读数据，以便失败后回退重读
+     */
+    private static BufferedImage decode(ImageInputStream input) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, false, true);
+            return reader.read(0, reader.getDefaultReadParam());
+        }
+        finally {
+            reader.dispose();
+        }
+    }
     
     /**
      * 尝试读取JPEG文件的高级方法,可读取32位的jpeg文件
@@ -275,7 +554,7 @@ public class ImageUtils {
      * using-imageio-readfile-file
      * 
      */
-    private static BufferedImage readJpeg(InputStream in) throws IOException {
+    private static BufferedImage readJpeg(ImageInputStream input) throws IOException {
         Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("JPEG");
         ImageReader reader = null;
         while (readers.hasNext()) {
@@ -288,15 +567,10 @@ public class ImageUtils {
             return null;
         }
         try {
-            ImageInputStream input = ImageIO.createImageInputStream(in);
             reader.setInput(input);
             // Read the image raster
             Raster raster = reader.readRaster(0, null);
-            BufferedImage image = createJPEG4(raster);
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            writeJpeg(image, out, 1);
-            out.flush();
-            return read(new ByteArrayInputStream(out.toByteArray()));
+            return createJPEG4(raster);
         }
         finally {
             try {
@@ -306,49 +580,628 @@ public class ImageUtils {
         }
     }
     
-    private static BufferedImage createJPEG4(Raster raster) {
-        int w = raster.getWidth();
-        int h = raster.getHeight();
-        byte[] rgb = new byte[w * h * 3];
-
-        float[] Y = raster.getSamples(0, 0, w, h, 0, (float[]) null);
-        float[] Cb = raster.getSamples(0, 0, w, h, 1, (float[]) null);
-        float[] Cr = raster.getSamples(0, 0, w, h, 2, (float[]) null);
-        float[] K = raster.getSamples(0, 0, w, h, 3, (float[]) null);
-
-        for (int i = 0, imax = Y.length, base = 0; i < imax; i++, base += 3) {
-            float k = 220 - K[i], y = 255 - Y[i], cb = 255 - Cb[i], cr = 255 - Cr[i];
-
-            double val = y + 1.402 * (cr - 128) - k;
-            val = (val - 128) * .65f + 128;
-            rgb[base] = val < 0.0 ? (byte) 0 : val > 255.0 ? (byte) 0xff : (byte) (val + 0.5);
-
-            val = y - 0.34414 * (cb - 128) - 0.71414 * (cr - 128) - k;
-            val = (val - 128) * .65f + 128;
-            rgb[base + 1] = val < 0.0 ? (byte) 0 : val > 255.0 ? (byte) 0xff : (byte) (val + 0.5);
-
-            val = y + 1.772 * (cb - 128) - k;
-            val = (val - 128) * .65f + 128;
-            rgb[base + 2] = val < 0.0 ? (byte) 0 : val > 255.0 ? (byte) 0xff : (byte) (val + 0.5);
-        }
-
-        raster = Raster.createInterleavedRaster(new DataBufferByte(rgb, rgb.length),
-                                                w,
-                                                h,
-                                                w * 3,
-                                                3,
-                                                new int[]{0, 1, 2},
-                                                null);
-
-        ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-        ColorModel cm = new ComponentColorModel(cs,
-                                                false,
-                                                true,
-                                                Transparency.OPAQUE,
-                                                DataBuffer.TYPE_BYTE);
-        return new BufferedImage(cm, (WritableRaster) raster, true, null);
+    /*
+     * CMYK/YCCK 转 RGB 用到的 16 位定点系数，均已乘上 0.65 的对比度压缩系数
+     */
+    private static final int FIX_SCALE = fix(0.65);
+    private static final int FIX_R_CR = fix(0.65 * 1.402);
+    private static final int FIX_G_CB = fix(0.65 * 0.34414);
+    private static final int FIX_G_CR = fix(0.65 * 0.71414);
+    private static final int FIX_B_CB = fix(0.65 * 1.772);
+    private static final int FIX_ROUND = (128 << 16) + (1 << 15);
+
+    /**
+     * 将 4 通道的 JPEG 栅格直接转换成 RGB 图像
+     * <p>
+     * 按行分段并行，对字节交错存储的栅格直接读取底层 DataBuffer，其他栅格逐行取样
+     */
+    private static BufferedImage createJPEG4(final Raster raster) {
+        final int w = raster.getWidth();
+        final int h = raster.getHeight();
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        final int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        if (sm instanceof ComponentSampleModel && db instanceof DataBufferByte && db.getNumBanks() == 1) {
+            final ComponentSampleModel csm = (ComponentSampleModel) sm;
+            final byte[] src = ((DataBufferByte) db).getData();
+            final int[] bandOffsets = csm.getBandOffsets();
+            final int pixelStride = csm.getPixelStride();
+            final int scanlineStride = csm.getScanlineStride();
+            final int base = db.getOffset()
+                             + (raster.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride
+                             + (raster.getMinX() - raster.getSampleModelTranslateX()) * pixelStride;
+            forEachRowBand(h, w, new RowTask() {
+                public void run(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        int p = base + y * scanlineStride;
+                        int q = y * w;
+                        for (int x = 0; x < w; x++, p += pixelStride) {
+                            rgb[q++] = ycck2rgb(src[p + bandOffsets[0]] & 0xff,
+                                                src[p + bandOffsets[1]] & 0xff,
+                                                src[p + bandOffsets[2]] & 0xff,
+                                                src[p + bandOffsets[3]] & 0xff);
+                        }
+                    }
+                }
+            });
+        } else {
+            final int minX = raster.getMinX();
+            final int minY = raster.getMinY();
+            forEachRowBand(h, w, new RowTask() {
+                public void run(int from, int to) {
+                    int[] row = new int[w * 4];
+                    for (int y = from; y < to; y++) {
+                        raster.getPixels(minX, minY + y, w, 1, row);
+                        int q = y * w;
+                        for (int x = 0, p = 0; x < w; x++, p += 4) {
+                            rgb[q++] = ycck2rgb(row[p], row[p + 1], row[p + 2], row[p + 3]);
+                        }
+                    }
+                }
+            });
+        }
+        return image;
+    }
+
+    private static int ycck2rgb(int Y, int Cb, int Cr, int K) {
+        // (y - k - 128) ，其中 y = 255 - Y, k = 220 - K
+        int yk = K - Y - 93;
+        int cb = 127 - Cb;
+        int cr = 127 - Cr;
+        int base = FIX_SCALE * yk + FIX_ROUND;
+        int r = clamp255((base + FIX_R_CR * cr) >> 16);
+        int g = clamp255((base - FIX_G_CB * cb - FIX_G_CR * cr) >> 16);
+        int b = clamp255((base + FIX_B_CB * cb) >> 16);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * 四舍五入成 16 位定点数
+     */
+    private static int fix(double v) {
+        return (int) Math.round(v * 65536);
+    }
+
+    private static int clamp255(int v) {
+        return v < 0 ? 0 : v > 255 ? 255 : v;
+    }
+
+    /**
+     * 行分段任务，处理 [from, to) 范围内的行
+     */
+    interface RowTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * 并行计算时，每个分段至少包含的像素数
+     */
+    private static final int BAND_PIXELS = 64 * 1024;
+
+    /**
+     * 将图片的行分成若干段，在 ForkJoin 公共池中并行执行。小图直接在当前线程执行
+     * 
+     * @param height
+     *            总行数
+     * @param width
+     *            每行像素数，用来估算分段大小
+     * @param task
+     *            分段任务
+     */
+    static void forEachRowBand(int height, int width, RowTask task) {
+        int band = Math.max(1, BAND_PIXELS / Math.max(1, width));
+        if (band >= height) {
+            task.run(0, height);
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new RowBandAction(task, 0, height, band));
+    }
+
+    @SuppressWarnings("serial")
+    private static final class RowBandAction extends RecursiveAction {
+        private final RowTask task;
+        private final int from;
+        private final int to;
+        private final int band;
+
+        RowBandAction(RowTask task, int from, int to, int band) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= band) {
+                task.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RowBandAction(task, from, mid, band), new RowBandAction(task, mid, to, band));
+        }
     }
     
+    /**
+     * 图片的基本信息，由 {@link ImageUtils#probe(Object)} 只读取文件头得到
+     */
+    public static final class ImageInfo {
+
+        private final int width;
+
+        private final int height;
+
+        private final String format;
+
+        private final int orientation;
+
+        ImageInfo(int width, int height, String format, int orientation) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.orientation = orientation;
+        }
+
+        /**
+         * @return 存储的宽度（未按 EXIF 方向旋转）
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return 存储的高度（未按 EXIF 方向旋转）
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return 图片格式，小写，如 jpeg, png, gif, bmp
+         */
+        public String getFormat() {
+            return format;
+        }
+
+        /**
+         * @return EXIF 方向 1-8，没有 EXIF 信息时为 1
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        /**
+         * @return 是否需要宽高互换才是显示时的方向（EXIF 方向 5-8）
+         */
+        public boolean isRotated() {
+            return orientation >= 5;
+        }
+
+        @Override
+        public String toString() {
+            return format + " " + width + "x" + height + " orientation=" + orientation;
+        }
+    }
+
+    /**
+     * 只读取图片头，获取宽高、格式以及 JPEG 的 EXIF 方向，不解码像素
+     * <p>
+     * 输入流只会读取到文件头为止，并且会被关闭
+     * 
+     * @param img
+     *            图片文件、文件路径、字节数组、输入流或 URL
+     * @return 图片信息，如果无法识别图片格式，返回 null
+     */
+    public static ImageInfo probe(Object img) {
+        ImageInputStream input = null;
+        try {
+            input = openImageInputStream(img, true);
+            return probe(input);
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+        finally {
+            Streams.safeClose(input);
+        }
+    }
+
+    private static ImageInfo probe(ImageInputStream input) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, false, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            String format = reader.getFormatName().toLowerCase();
+            int orientation = 1;
+            if ("jpeg".equals(format) || "jpg".equals(format)) {
+                input.seek(0);
+                orientation = exifOrientation(input);
+            }
+            return new ImageInfo(width, height, format, orientation);
+        }
+        finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * 顺着 JPEG 的段标记找到 APP1 中的 EXIF，读取 IFD0 中的 Orientation(0x0112)
+     */
+    private static int exifOrientation(ImageInputStream in) throws IOException {
+        in.setByteOrder(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return 1;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                // 到了图像数据或者不是合法的段，说明没有 EXIF
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+                    return 1;
+                }
+                int len = in.readUnsignedShort() - 2;
+                long next = in.getStreamPosition() + len;
+                // "Exif\0\0"
+                if (marker == 0xFFE1 && len > 14 && in.readInt() == 0x45786966 && in.readUnsignedShort() == 0) {
+                    long tiff = in.getStreamPosition();
+                    int order = in.readUnsignedShort();
+                    if (order == 0x4949) {
+                        in.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+                    } else if (order != 0x4D4D) {
+                        return 1;
+                    }
+                    in.skipBytes(2);
+                    in.seek(tiff + in.readUnsignedInt());
+                    int entries = in.readUnsignedShort();
+                    for (int i = 0; i < entries; i++) {
+                        if (in.readUnsignedShort() == 0x0112) {
+                            // 类型(2) + 个数(4) 之后是 SHORT 值
+                            in.skipBytes(6);
+                            int v = in.readUnsignedShort();
+                            return v >= 1 && v <= 8 ? v : 1;
+                        }
+                        in.skipBytes(10);
+                    }
+                    return 1;
+                }
+                in.seek(next);
+            }
+        }
+        catch (EOFException e) {
+            return 1;
+        }
+        finally {
+            in.setByteOrder(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    /**
+     * 递归扫描目录下的所有文件，并行读取图片头信息
+     * 
+     * @param dir
+     *            目录
+     * @return 文件到图片信息的映射，按文件遍历顺序排列，不是图片的文件不包括在内
+     */
+    public static Map<File, ImageInfo> probeDir(File dir) {
+        return probeDir(dir, Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    /**
+     * 递归扫描目录下的所有文件，用指定个数的线程并行读取图片头信息
+     * 
+     * @param dir
+     *            目录
+     * @param threads
+     *            并行读取的线程数，读取文件头基本上都在等 I/O，可以比 CPU 核数多
+     * @return 文件到图片信息的映射，按文件遍历顺序排列，不是图片的文件不包括在内
+     */
+    public static Map<File, ImageInfo> probeDir(File dir, int threads) {
+        List<File> files = new ArrayList<File>();
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.filter(Files::isRegularFile).forEach(p -> files.add(p.toFile()));
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<ImageInfo>> futures = new ArrayList<Future<ImageInfo>>(files.size());
+            for (File f : files) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        return probe(f);
+                    }
+                    catch (RuntimeException e) {
+                        log.warn("读取图片信息失败: {}", f, e);
+                        return null;
+                    }
+                }));
+            }
+            Map<File, ImageInfo> result = new LinkedHashMap<File, ImageInfo>();
+            for (int i = 0; i < files.size(); i++) {
+                ImageInfo info = futures.get(i).get();
+                if (info != null) {
+                    result.put(files.get(i), info);
+                }
+            }
+            return result;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Lang.wrapThrow(e);
+        }
+        catch (ExecutionException e) {
+            throw Lang.wrapThrow(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 只解码图片中的指定区域，并缩放到目标大小
+     * <p>
+     * 解码时通过 ImageReadParam 设置源区域和隔行采样，内存中只会有目标区域（采样后）的像素，
+     * 适合从很大的扫描件中裁剪局部
+     * 
+     * @param img
+     *            图片文件、文件路径、字节数组、输入流或 URL。输入流会被关闭
+     * @param region
+     *            源图中的区域，null 表示整张图片，超出图片的部分会被裁掉
+     * @param targetWidth
+     *            目标宽度，小于等于 0 表示按高度等比缩放
+     * @param targetHeight
+     *            目标高度，小于等于 0 表示按宽度等比缩放。宽高都小于等于 0 时不缩放
+     * @return 区域图片，如果无法识别图片格式，返回 null
+     */
+    public static BufferedImage readRegion(Object img, Rectangle region, int targetWidth, int targetHeight) {
+        ImageInputStream input = null;
+        ImageReader reader = null;
+        try {
+            input = openImageInputStream(img, false);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            reader = readers.next();
+            reader.setInput(input, true, true);
+            Rectangle src = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+            if (region != null) {
+                src = src.intersection(region);
+            }
+            if (src.isEmpty()) {
+                throw Lang.makeThrow("Region %s is out of image %dx%d", region, reader.getWidth(0), reader.getHeight(0));
+            }
+
+            int tw = targetWidth;
+            int th = targetHeight;
+            if (tw <= 0 && th <= 0) {
+                tw = src.width;
+                th = src.height;
+            } else if (tw <= 0) {
+                tw = Math.max(1, (int) ((long) src.width * th / src.height));
+            } else if (th <= 0) {
+                th = Math.max(1, (int) ((long) src.height * tw / src.width));
+            }
+
+            // 先用隔行采样把解码量降到不小于目标大小，剩下的再插值缩放
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(src);
+            param.setSourceSubsampling(Math.max(1, src.width / tw), Math.max(1, src.height / th), 0, 0);
+            BufferedImage image = reader.read(0, param);
+            return scale(image, tw, th);
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+        finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            Streams.safeClose(input);
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        if (image.getWidth() == width && image.getHeight() == height) {
+            return image;
+        }
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage target = new BufferedImage(width, height, type);
+        Graphics2D gc = target.createGraphics();
+        try {
+            gc.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            gc.drawImage(image, 0, 0, width, height, null);
+        }
+        finally {
+            gc.dispose();
+        }
+        return target;
+    }
+
+    /**
+     * 将图片按块依次解码，每次只有一块的像素在内存中，可以处理比堆内存还大的图片
+     * <p>
+     * 块按从左到右、从上到下的顺序返回，右侧和底部的块可能小于指定大小。
+     * 用完或中途放弃时需要关闭，遍历完最后一块时会自动关闭
+     * 
+     * <pre>
+     * try (ImageUtils.TileReader tiles = ImageUtils.tiles(file, 1024, 1024)) {
+     *     while (tiles.hasNext()) {
+     *         ImageUtils.Tile tile = tiles.next();
+     *         ...
+     *     }
+     * }
+     * </pre>
+     * 
+     * @param img
+     *            图片文件、文件路径、字节数组、输入流或 URL。输入流会被关闭
+     * @param tileWidth
+     *            块宽度。对 JPEG、PNG 等按行存储的格式，宽度取整张图片宽度时解码最快
+     * @param tileHeight
+     *            块高度
+     * @return 块迭代器
+     */
+    public static TileReader tiles(Object img, int tileWidth, int tileHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw Lang.makeThrow("Illegal tile size %dx%d", tileWidth, tileHeight);
+        }
+        ImageInputStream input = null;
+        try {
+            input = openImageInputStream(img, false);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw Lang.makeThrow("Unkown image format --> " + img);
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(input, false, true);
+            return new TileReader(reader, input, tileWidth, tileHeight);
+        }
+        catch (IOException e) {
+            Streams.safeClose(input);
+            throw Lang.wrapThrow(e);
+        }
+        catch (RuntimeException e) {
+            Streams.safeClose(input);
+            throw e;
+        }
+    }
+
+    /**
+     * 图片中的一块
+     */
+    public static final class Tile {
+
+        private final int x;
+
+        private final int y;
+
+        private final BufferedImage image;
+
+        Tile(int x, int y, BufferedImage image) {
+            this.x = x;
+            this.y = y;
+            this.image = image;
+        }
+
+        /**
+         * @return 块左上角在源图中的横坐标
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * @return 块左上角在源图中的纵坐标
+         */
+        public int getY() {
+            return y;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+    }
+
+    /**
+     * 按块解码图片的迭代器
+     * 
+     * @see ImageUtils#tiles(Object, int, int)
+     */
+    public static final class TileReader implements Iterator<Tile>, Closeable {
+
+        private final ImageReader reader;
+
+        private final ImageInputStream input;
+
+        private final int width;
+
+        private final int height;
+
+        private final int tileWidth;
+
+        private final int tileHeight;
+
+        private int x;
+
+        private int y;
+
+        private boolean closed;
+
+        TileReader(ImageReader reader, ImageInputStream input, int tileWidth, int tileHeight) throws IOException {
+            this.reader = reader;
+            this.input = input;
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+        }
+
+        /**
+         * @return 源图宽度
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return 源图高度
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !closed && y < height;
+        }
+
+        @Override
+        public Tile next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Rectangle region = new Rectangle(x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y));
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(region);
+            BufferedImage image;
+            try {
+                image = reader.read(0, param);
+            }
+            catch (IOException e) {
+                close();
+                throw Lang.wrapThrow(e);
+            }
+            Tile tile = new Tile(x, y, image);
+            x += tileWidth;
+            if (x >= width) {
+                x = 0;
+                y += tileHeight;
+            }
+            if (y >= height) {
+                close();
+            }
+            return tile;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                reader.dispose();
+                Streams.safeClose(input);
+            }
+        }
+    }
+
     /**
      * 写入一个 JPG 图像
      * 
@@ -402,22 +1255,154 @@ public class ImageUtils {
         }
     }
     
+    /**
+     * 将图片编码成 "data:image/类型;base64," 开头的字符串
+     * 
+     * @param img
+     *            图片对象
+     * @param type
+     *            图片格式，如 png, jpg
+     * @return base64 图片字符串
+     */
     public static String writeBase64String(BufferedImage img, String type) {
-    	ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    	try {
-            ImageIO.write(img, type, bos);
-            byte[] imageBytes = bos.toByteArray();
-            @SuppressWarnings("static-access")
-			String imageString = Base64.getEncoder().encodeToString(imageBytes);
-            bos.close();
-            return "data:image/" + type + ";base64," + imageString;
-        } catch (IOException e) {
-        	throw Lang.wrapThrow(e);
-        }
-    	
+        // 编码后的长度无法预知，按需扩容
+        StringWriter sw = new StringWriter();
+        writeBase64(img, type, sw);
+        return sw.toString();
     }
     
     public static String writeBase64String(BufferedImage img) {
     	return writeBase64String(img, "png");
     }
-}
\ No newline at end of file
+
+    /**
+     * 将图片以 "data:image/类型;base64," 开头的 base64 文本流式写入输出流，
+     * 编码过程中只占用固定大小的缓冲，不会在内存中保留整张图片的字节或字符串
+     * <p>
+     * <b style=color:red>注意</b>，它并不会关闭输出流
+     * 
+     * @param img
+     *            图片对象
+     * @param type
+     *            图片格式，如 png, jpg
+     * @param ops
+     *            输出流
+     * @return false，如果没有该格式的 ImageWriter，此时只写入了前缀
+     */
+    public static boolean writeBase64(RenderedImage img, String type, OutputStream ops) {
+        try {
+            ops.write(("data:image/" + type + ";base64,").getBytes(Encoding.CHARSET_ASCII));
+            // 关闭 base64 流时才会写出末尾的补齐字符，但不能连带关闭调用者的流
+            OutputStream b64 = Base64.getEncoder().wrap(new FilterOutputStream(ops) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            boolean flag;
+            ImageOutputStream ios = new MemoryCacheImageOutputStream(b64);
+            try {
+                flag = ImageIO.write(img, type, ios);
+            }
+            finally {
+                ios.close();
+            }
+            b64.close();
+            return flag;
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+    }
+
+    /**
+     * 将图片以 "data:image/类型;base64," 开头的 base64 文本流式写入文本输出流
+     * <p>
+     * <b style=color:red>注意</b>，它并不会关闭输出流
+     * 
+     * @see #writeBase64(RenderedImage, String, OutputStream)
+     */
+    public static boolean writeBase64(RenderedImage img, String type, Writer writer) {
+        AsciiWriterStream ops = new AsciiWriterStream(writer);
+        boolean flag = writeBase64(img, type, ops);
+        try {
+            ops.flush();
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+        return flag;
+    }
+
+    /**
+     * 将图片以 "data:image/类型;base64," 开头的 base64 文本直接写入响应体。
+     * 如果响应还没有设置 Content-Type，则设为 text/plain
+     * 
+     * @see #writeBase64(RenderedImage, String, OutputStream)
+     */
+    public static boolean writeBase64(RenderedImage img, String type, ServletResponse resp) {
+        if (resp.getContentType() == null) {
+            resp.setContentType("text/plain");
+        }
+        try {
+            return writeBase64(img, type, resp.getOutputStream());
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+    }
+
+    /**
+     * 把 ASCII 字节逐个当作字符写入 Writer 的输出流
+     */
+    private static final class AsciiWriterStream extends OutputStream {
+
+        private final Writer writer;
+
+        private final char[] cbuf = new char[8192];
+
+        private int len;
+
+        AsciiWriterStream(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (len == cbuf.length) {
+                flushBuffer();
+            }
+            cbuf[len++] = (char) (b & 0xff);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            while (n > 0) {
+                if (len == cbuf.length) {
+                    flushBuffer();
+                }
+                int m = Math.min(n, cbuf.length - len);
+                for (int i = 0; i < m; i++) {
+                    cbuf[len++] = (char) (b[off++] & 0xff);
+                }
+                n -= m;
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            writer.write(cbuf, 0, len);
+            len = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            writer.flush();
+        }
+    }
+}
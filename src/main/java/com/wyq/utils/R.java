@@ -1,13 +1,167 @@
 package com.wyq.utils;
 
 import java.awt.*;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
 public abstract class R {
 
-    static Random r = new Random();
+    /**
+     * 随机数来源。除 {@link #SHARED} 外每个线程各用各的生成器，线程之间没有竞争
+     */
+    public enum Source {
+        /**
+         * ThreadLocalRandom，默认
+         */
+        THREAD_LOCAL {
+            @Override
+            Random current() {
+                return ThreadLocalRandom.current();
+            }
+        },
+        /**
+         * 每个线程一个 SplittableRandom，由同一个根生成器拆分出来，统计质量比 ThreadLocalRandom 更好
+         */
+        SPLITTABLE {
+            @Override
+            Random current() {
+                return splittables.get();
+            }
+        },
+        /**
+         * 每个线程一个缓冲区，从共享的 SecureRandom 中成批读取随机字节
+         */
+        SECURE {
+            @Override
+            Random current() {
+                return secures.get();
+            }
+        },
+        /**
+         * 所有线程共用 {@link R#setR(Random)} 设置的实例
+         */
+        SHARED {
+            @Override
+            Random current() {
+                return r;
+            }
+        };
+
+        abstract Random current();
+    }
+
+    private static final SplittableRandom splittableRoot = new SplittableRandom();
+
+    private static final ThreadLocal<Random> splittables = ThreadLocal.withInitial(() -> {
+        synchronized (splittableRoot) {
+            return new SplittableAdapter(splittableRoot.split());
+        }
+    });
+
+    private static final SecureRandom secureRoot = new SecureRandom();
+
+    private static final ThreadLocal<Random> secures = ThreadLocal.withInitial(BufferedSecureRandom::new);
+
+    /**
+     * 生成 UUID 用的每线程状态，随机数生成器只用 SecureRandom 播种一次
+     */
+    private static final class UuidState {
+        final SplittableRandom rnd;
+        long lastMillis;
+        int seq;
+
+        UuidState(long seed) {
+            this.rnd = new SplittableRandom(seed);
+        }
+    }
+
+    private static final ThreadLocal<UuidState> uuidStates = ThreadLocal.withInitial(() -> {
+        synchronized (secureRoot) {
+            return new UuidState(secureRoot.nextLong());
+        }
+    });
+
+    static volatile Random r = new Random();
+
+    private static volatile Source source = Source.THREAD_LOCAL;
+
+    /**
+     * 以 Random 的形式使用 SplittableRandom，只能在创建它的线程中使用
+     */
+    private static final class SplittableAdapter extends Random {
+        private static final long serialVersionUID = 1L;
+
+        private final SplittableRandom sr;
+
+        SplittableAdapter(SplittableRandom sr) {
+            this.sr = sr;
+        }
+
+        @Override
+        public synchronized void setSeed(long seed) {
+            // Random 的构造函数会调用一次
+            if (sr != null) {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        @Override
+        protected int next(int bits) {
+            return sr.nextInt() >>> (32 - bits);
+        }
+
+        @Override
+        public int nextInt() {
+            return sr.nextInt();
+        }
+
+        @Override
+        public int nextInt(int bound) {
+            return sr.nextInt(bound);
+        }
+
+        @Override
+        public long nextLong() {
+            return sr.nextLong();
+        }
+
+        @Override
+        public double nextDouble() {
+            return sr.nextDouble();
+        }
+    }
+
+    /**
+     * 从共享的 SecureRandom 成批读取随机字节，再逐个取用，只能在创建它的线程中使用
+     */
+    private static final class BufferedSecureRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] buf = new byte[512];
+        private int pos = buf.length;
+
+        @Override
+        public synchronized void setSeed(long seed) {
+            if (buf != null) {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        @Override
+        protected int next(int bits) {
+            if (pos == buf.length) {
+                secureRoot.nextBytes(buf);
+                pos = 0;
+            }
+            int v = (buf[pos] & 0xff) << 24 | (buf[pos + 1] & 0xff) << 16 | (buf[pos + 2] & 0xff) << 8 | (buf[pos + 3] & 0xff);
+            pos += 4;
+            return v >>> (32 - bits);
+        }
+    }
 
     /**
      * 根据一个范围，生成一个随机的整数
@@ -19,11 +173,46 @@ public abstract class R {
      * @return 随机数
      */
     public static int random(int min, int max) {
-        return r.nextInt(max - min + 1) + min;
+        return get().nextInt(max - min + 1) + min;
     }
 
     private static final char[] _UU64 = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz".toCharArray();
     private static final char[] _UU32 = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+    private static final char[] _UU16 = "0123456789abcdef".toCharArray();
+
+    /**
+     * 字符 -> 数值的反查表，非法字符为 -1。UU32、UU16 只用小写字母，解码时同以前的 Long.parseLong 一样不区分大小写
+     */
+    private static final byte[] _UU64_REV = reverse(_UU64, false);
+    private static final byte[] _UU32_REV = reverse(_UU32, true);
+    private static final byte[] _UU16_REV = reverse(_UU16, true);
+
+    private static byte[] reverse(char[] cs, boolean ignoreCase) {
+        byte[] rev = new byte[128];
+        Arrays.fill(rev, (byte) -1);
+        for (int i = 0; i < cs.length; i++) {
+            rev[cs[i]] = (byte) i;
+            if (ignoreCase) {
+                rev[Character.toUpperCase(cs[i])] = (byte) i;
+            }
+        }
+        return rev;
+    }
+
+    private static int digit(byte[] rev, String s, int index) {
+        char c = s.charAt(index);
+        int d = c < 128 ? rev[c] : -1;
+        if (d < 0) {
+            throw Lang.makeThrow("Invalid char '%s' at %d in '%s'", c, index, s);
+        }
+        return d;
+    }
+
+    private static void checkLength(String s, int length) {
+        if (s == null || s.length() != length) {
+            throw Lang.makeThrow("Expect %d chars, but got '%s'", length, s);
+        }
+    }
 
     /**
      * org.nutz.lang.random.R#UU64(UUID)
@@ -56,27 +245,79 @@ public abstract class R {
      * @return 64进制表示的紧凑格式的 UUID
      */
     public static String UU64(UUID uu) {
-        int index = 0;
+        return UU64(uu.getMostSignificantBits(), uu.getLeastSignificantBits());
+    }
+
+    /**
+     * 用当前线程的快速随机数生成器生成第 4 版（随机）UUID
+     * <p>
+     * 与 UUID.randomUUID() 不同，不经过共享的 SecureRandom，不会因为熵不足而阻塞，也没有线程间竞争。
+     * 生成器只在每个线程第一次使用时从 SecureRandom 取一次种子，所以不要用在需要密码学强度的地方（如令牌）
+     * 
+     * <pre>
+     * String id = R.UU64(R.fastUUID());
+     * </pre>
+     * 
+     * @return UUID 对象
+     */
+    public static UUID fastUUID() {
+        SplittableRandom rnd = uuidStates.get().rnd;
+        long m = rnd.nextLong() & ~0xF000L | 0x4000L;
+        long l = rnd.nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+        return new UUID(m, l);
+    }
+
+    /**
+     * 生成第 7 版（按时间排序）UUID：高 48 位是毫秒时间戳，之后 12 位在同一线程同一毫秒内递增，其余为随机数
+     * <p>
+     * 同一线程生成的 UUID 严格递增，不同线程之间只保证按毫秒有序。适合作为数据库主键，插入时索引局部性好。
+     * 随机数来源同 {@link #fastUUID()}
+     * 
+     * <pre>
+     * String id = R.UU32(R.timeUUID());
+     * </pre>
+     * 
+     * @return UUID 对象
+     */
+    public static UUID timeUUID() {
+        UuidState st = uuidStates.get();
+        long now = System.currentTimeMillis();
+        if (now > st.lastMillis) {
+            st.lastMillis = now;
+            // 序号从随机的低位开始，留出同一毫秒内递增的空间
+            st.seq = st.rnd.nextInt(0x800);
+        } else if (++st.seq > 0xFFF) {
+            // 同一毫秒内序号用完，或者时钟回拨，借用下一毫秒
+            st.lastMillis++;
+            st.seq = 0;
+        }
+        long m = st.lastMillis << 16 | 0x7000L | st.seq;
+        long l = st.rnd.nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+        return new UUID(m, l);
+    }
+
+    /**
+     * @param L
+     *            UUID 的高 64 位
+     * @param R
+     *            UUID 的低 64 位
+     * @return 64进制表示的紧凑格式的 UUID
+     * @see #UU64(UUID)
+     */
+    public static String UU64(long L, long R) {
         char[] cs = new char[22];
-        long L = uu.getMostSignificantBits();
-        long R = uu.getLeastSignificantBits();
-        long mask = 63;
         // 从L64位取10次，每次取6位
-        for (int off = 58; off >= 4; off -= 6) {
-            long hex = (L & (mask << off)) >>> off;
-            cs[index++] = _UU64[(int) hex];
+        for (int i = 0; i < 10; i++) {
+            cs[i] = _UU64[(int) (L >>> (58 - i * 6)) & 63];
         }
         // 从L64位取最后的4位 ＋ R64位头2位拼上
-        int l = (int) (((L & 0xF) << 2) | ((R & (3 << 62)) >>> 62));
-        cs[index++] = _UU64[l];
+        cs[10] = _UU64[(int) ((L & 0xF) << 2 | R >>> 62)];
         // 从R64位取10次，每次取6位
-        for (int off = 56; off >= 2; off -= 6) {
-            long hex = (R & (mask << off)) >>> off;
-            cs[index++] = _UU64[(int) hex];
+        for (int i = 0; i < 10; i++) {
+            cs[11 + i] = _UU64[(int) (R >>> (56 - i * 6)) & 63];
         }
         // 剩下的两位最后取
-        cs[index++] = _UU64[(int) (R & 3)];
-        // 返回字符串
+        cs[21] = _UU64[(int) (R & 3)];
         return new String(cs);
     }
 
@@ -88,21 +329,45 @@ public abstract class R {
      * @return UUID 对象
      */
     public static UUID fromUU64(String uu64) {
-        String uu16 = UU16FromUU64(uu64);
-        return UUID.fromString(UU(uu16));
+        checkLength(uu64, 22);
+        long L = 0;
+        for (int i = 0; i < 10; i++) {
+            L = L << 6 | digit(_UU64_REV, uu64, i);
+        }
+        int d = digit(_UU64_REV, uu64, 10);
+        L = L << 4 | d >>> 2;
+        long R = d & 3;
+        for (int i = 11; i < 21; i++) {
+            R = R << 6 | digit(_UU64_REV, uu64, i);
+        }
+        d = digit(_UU64_REV, uu64, 21);
+        if (d > 3) {
+            throw Lang.makeThrow("Invalid char '%s' at %d in '%s'", uu64.charAt(21), 21, uu64);
+        }
+        R = R << 2 | d;
+        return new UUID(L, R);
     }
 
     public static String UU32(UUID uu) {
-        StringBuilder sb = new StringBuilder();
-        long m = uu.getMostSignificantBits();
-        long l = uu.getLeastSignificantBits();
-        for (int i = 0; i < 13; i++) {
-            sb.append(_UU32[(int) (m >> ((13 - i - 1) * 5)) & 31]);
-        }
+        return UU32(uu.getMostSignificantBits(), uu.getLeastSignificantBits());
+    }
+
+    /**
+     * 每个 long 用 13 个 32 进制字符表示，第一个字符只有低 4 位有效（负数时第 5 位是符号扩展）
+     * 
+     * @param m
+     *            UUID 的高 64 位
+     * @param l
+     *            UUID 的低 64 位
+     * @return 32进制表示的紧凑格式的 UUID
+     */
+    public static String UU32(long m, long l) {
+        char[] cs = new char[26];
         for (int i = 0; i < 13; i++) {
-            sb.append(_UU32[(int) (l >> ((13 - i - 1)) * 5) & 31]);
+            cs[i] = _UU32[(int) (m >> ((12 - i) * 5)) & 31];
+            cs[13 + i] = _UU32[(int) (l >> ((12 - i) * 5)) & 31];
         }
-        return sb.toString();
+        return new String(cs);
     }
 
     public static String UU32() {
@@ -110,8 +375,14 @@ public abstract class R {
     }
 
     public static UUID fromUU32(String u32) {
-        return new UUID(parseUnsignedLong(u32.substring(0, 13), 32),
-                        parseUnsignedLong(u32.substring(13), 32));
+        checkLength(u32, 26);
+        long m = 0;
+        long l = 0;
+        for (int i = 0; i < 13; i++) {
+            m = m << 5 | digit(_UU32_REV, u32, i);
+            l = l << 5 | digit(_UU32_REV, u32, 13 + i);
+        }
+        return new UUID(m, l);
     }
 
     public static long parseUnsignedLong(String s, int radix) {
@@ -141,49 +412,33 @@ public abstract class R {
         return sb.toString();
     }
 
-    private static final char[] _UU16 = "0123456789abcdef".toCharArray();
-
     /**
      * 将一个 UU64 表示的紧凑字符串，变成 UU16 表示的字符串
      * 
-     * <pre>
-     * 每次取2个字符，恢复成3个byte，重复10次， 最后一次，是用最后2个字符，恢复回2个byte </prev>
-     * 
      * @param uu64
      *            uu64 64进制表示的 UUID, 内容为 [\\-0-9a-zA-Z_]
      * @return 16进制表示的紧凑格式的 UUID
      */
     public static String UU16FromUU64(String uu64) {
-        byte[] bytes = new byte[32];
-        char[] cs = uu64.toCharArray();
-        int index = 0;
-        // 每次取2个字符，恢复成3个byte，重复10次，
-        for (int i = 0; i < 10; i++) {
-            int off = i * 2;
-            char cl = cs[off];
-            char cr = cs[off + 1];
-            int l = Arrays.binarySearch(_UU64, cl);
-            int r = Arrays.binarySearch(_UU64, cr);
-            int n = (l << 6) | r;
-            bytes[index++] = (byte) ((n & 0xF00) >>> 8);
-            bytes[index++] = (byte) ((n & 0xF0) >>> 4);
-            bytes[index++] = (byte) (n & 0xF);
-        }
-        // 最后一次，是用最后2个字符，恢复回2个byte
-        char cl = cs[20];
-        char cr = cs[21];
-        int l = Arrays.binarySearch(_UU64, cl);
-        int r = Arrays.binarySearch(_UU64, cr);
-        int n = (l << 2) | r;
-        bytes[index++] = (byte) ((n & 0xF0) >>> 4);
-        bytes[index++] = (byte) (n & 0xF);
-
-        // 返回 UUID 对象
-        char[] names = new char[32];
-        for (int i = 0; i < bytes.length; i++) {
-            names[i] = _UU16[bytes[i]];
+        return UU16(fromUU64(uu64));
+    }
+
+    /**
+     * 从一个 UU16 恢复回一个 UUID 对象
+     * 
+     * @param uu16
+     *            16进制表示的紧凑格式的 UUID
+     * @return UUID 对象
+     */
+    public static UUID fromUU16(String uu16) {
+        checkLength(uu16, 32);
+        long m = 0;
+        long l = 0;
+        for (int i = 0; i < 16; i++) {
+            m = m << 4 | digit(_UU16_REV, uu16, i);
+            l = l << 4 | digit(_UU16_REV, uu16, 16 + i);
         }
-        return new String(names);
+        return new UUID(m, l);
     }
 
     /**
@@ -199,8 +454,58 @@ public abstract class R {
      * @return 16进制表示的紧凑格式的 UUID
      */
     public static String UU16(UUID uu) {
-        return StringVerification.alignRight(Long.toHexString(uu.getMostSignificantBits()), 16, '0')
-               + StringVerification.alignRight(Long.toHexString(uu.getLeastSignificantBits()), 16, '0');
+        return UU16(uu.getMostSignificantBits(), uu.getLeastSignificantBits());
+    }
+
+    /**
+     * @param m
+     *            UUID 的高 64 位
+     * @param l
+     *            UUID 的低 64 位
+     * @return 16进制表示的紧凑格式的 UUID
+     */
+    public static String UU16(long m, long l) {
+        char[] cs = new char[32];
+        for (int i = 0; i < 16; i++) {
+            cs[i] = _UU16[(int) (m >>> ((15 - i) * 4)) & 15];
+            cs[16 + i] = _UU16[(int) (l >>> ((15 - i) * 4)) & 15];
+        }
+        return new String(cs);
+    }
+
+    /**
+     * 数字
+     */
+    public static final String NUMBERS = "0123456789";
+
+    /**
+     * 数字+小写字母
+     */
+    public static final String LOWER_ALNUM = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * 数字+大小写字母
+     */
+    public static final String ALNUM = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private static final char[] _NUMBERS = NUMBERS.toCharArray();
+    private static final char[] _LOWER_ALNUM = LOWER_ALNUM.toCharArray();
+    private static final char[] _ALNUM = ALNUM.toCharArray();
+
+    /**
+     * 内置字母表直接用预先拆好的数组，其他字母表每次拆一份
+     */
+    private static char[] alphabet(String alphabet) {
+        if (alphabet == NUMBERS) {
+            return _NUMBERS;
+        }
+        if (alphabet == LOWER_ALNUM) {
+            return _LOWER_ALNUM;
+        }
+        if (alphabet == ALNUM) {
+            return _ALNUM;
+        }
+        return alphabet.toCharArray();
     }
 
     /**
@@ -215,7 +520,7 @@ public abstract class R {
     }
 
     /**
-     * 返回指定长度随机数字+字母(大小写敏感)组成的字符串
+     * 返回指定长度随机数字+字母(大小写敏感)组成的字符串，每个字符等概率
      * 
      * @param length
      *            指定长度
@@ -224,29 +529,7 @@ public abstract class R {
      * @return 随机字符串
      */
     public static String captchaChar(int length, boolean caseSensitivity) {
-        StringBuilder sb = new StringBuilder();
-        Random rand = new Random();// 随机用以下三个随机生成器
-        Random randdata = new Random();
-        int data = 0;
-        for (int i = 0; i < length; i++) {
-            int index = rand.nextInt(caseSensitivity ? 3 : 2);
-            // 目的是随机选择生成数字，大小写字母
-            switch (index) {
-            case 0:
-                data = randdata.nextInt(10);// 仅仅会生成0~9, 0~9的ASCII为48~57
-                sb.append(data);
-                break;
-            case 1:
-                data = randdata.nextInt(26) + 97;// 保证只会产生ASCII为97~122(a-z)之间的整数,
-                sb.append((char) data);
-                break;
-            case 2: // caseSensitivity为true的时候, 才会有大写字母
-                data = randdata.nextInt(26) + 65;// 保证只会产生ASCII为65~90(A~Z)之间的整数
-                sb.append((char) data);
-                break;
-            }
-        }
-        return sb.toString();
+        return captcha(length, caseSensitivity ? ALNUM : LOWER_ALNUM);
     }
 
     /**
@@ -257,16 +540,89 @@ public abstract class R {
      * @return 随机字符串
      */
     public static String captchaNumber(int length) {
-        StringBuilder sb = new StringBuilder();
-        Random rand = new Random();
-        for (int i = 0; i < length; i++) {
-            sb.append(rand.nextInt(10));
+        return captcha(length, NUMBERS);
+    }
+
+    /**
+     * 返回指定长度、由字母表中的字符组成的随机字符串，每个字符等概率
+     * 
+     * @param length
+     *            指定长度
+     * @param alphabet
+     *            字母表，如 {@link #NUMBERS}、{@link #LOWER_ALNUM}，或者去掉了 0/o、1/l 等易混字符的自定义字母表
+     * @return 随机字符串
+     */
+    public static String captcha(int length, String alphabet) {
+        char[] cs = new char[length];
+        fill(cs, 0, length, alphabet(alphabet));
+        return new String(cs);
+    }
+
+    /**
+     * 批量生成随机字符串，填满给定的数组，用于预先生成验证码池
+     * 
+     * @param out
+     *            结果数组
+     * @param length
+     *            每个字符串的长度
+     * @param alphabet
+     *            字母表
+     * @return 传入的结果数组
+     */
+    public static String[] captcha(String[] out, int length, String alphabet) {
+        char[] cs = new char[out.length * length];
+        fill(cs, 0, cs.length, alphabet(alphabet));
+        for (int i = 0; i < out.length; i++) {
+            out[i] = new String(cs, i * length, length);
         }
-        return sb.toString();
+        return out;
     }
 
     /**
-     * 设置随机数生成器的实例, 例如 SecureRandom
+     * 用字母表中的随机字符填充数组
+     * <p>
+     * 每个字符需要 ceil(log2(字母表长度)) 位随机数，一次 nextLong 可以取出多个字符；
+     * 取出的值超出字母表长度时丢弃重取，保证每个字符等概率
+     * 
+     * @param cs
+     *            字符数组
+     * @param off
+     *            开始位置
+     * @param len
+     *            填充个数
+     * @param alphabet
+     *            字母表，不可以为空
+     */
+    public static void fill(char[] cs, int off, int len, String alphabet) {
+        fill(cs, off, len, alphabet(alphabet));
+    }
+
+    private static void fill(char[] cs, int off, int len, char[] alphabet) {
+        int n = alphabet.length;
+        if (n == 0) {
+            throw Lang.makeThrow("Alphabet is empty");
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(n - 1);
+        int mask = (1 << bits) - 1;
+        Random rnd = get();
+        long word = 0;
+        int left = 0;
+        for (int i = off, end = off + len; i < end;) {
+            if (left < bits) {
+                word = rnd.nextLong();
+                left = 64;
+            }
+            int v = (int) word & mask;
+            word >>>= bits;
+            left -= bits;
+            if (v < n) {
+                cs[i++] = alphabet[v];
+            }
+        }
+    }
+
+    /**
+     * 设置随机数生成器的实例, 例如 SecureRandom，之后所有线程共用这个实例（{@link Source#SHARED}）
      * 
      * @param r
      *            随机生成器,不可以是null
@@ -275,6 +631,26 @@ public abstract class R {
         if (r == null)
             throw new NullPointerException("Random MUST NOT NULL");
         R.r = r;
+        R.source = Source.SHARED;
+    }
+
+    /**
+     * 设置随机数来源
+     * 
+     * @param source
+     *            随机数来源,不可以是null
+     */
+    public static void setSource(Source source) {
+        if (source == null)
+            throw new NullPointerException("Source MUST NOT NULL");
+        R.source = source;
+    }
+
+    /**
+     * @return 当前的随机数来源
+     */
+    public static Source getSource() {
+        return source;
     }
 
     /**
@@ -308,7 +684,12 @@ public abstract class R {
         return Fonts.random(style, size);
     }
 
+    /**
+     * 获取当前线程使用的随机数生成器。除 {@link Source#SHARED} 外，返回的实例不要传给其他线程使用
+     * 
+     * @return 随机数生成器
+     */
     public static Random get() {
-        return r;
+        return source.current();
     }
 }
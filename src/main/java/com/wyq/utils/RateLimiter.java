@@ -0,0 +1,107 @@
+package com.wyq.utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按字节数限速的令牌桶，多个流共用同一个实例时共享带宽
+ * <p>
+ * 令牌按速率持续补充，桶满为止；取令牌不够时先欠着，调用线程睡到欠账还清为止，所以单次取用可以超过桶的容量
+ *
+ * <pre>
+ * RateLimiter backup = new RateLimiter(20 * 1024 * 1024); // 所有备份任务合计 20MB/s
+ * Streams.writeAndClose(Streams.limit(out, backup), in);
+ * </pre>
+ */
+public class RateLimiter {
+
+    private long bytesPerSecond;
+    private final long burst;
+
+    private double tokens;
+    private long last = System.nanoTime();
+
+    /**
+     * 桶容量为一秒的字节数
+     *
+     * @param bytesPerSecond
+     *            每秒字节数
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * @param bytesPerSecond
+     *            每秒字节数
+     * @param burst
+     *            桶容量，即空闲之后允许一次性通过的字节数
+     */
+    public RateLimiter(long bytesPerSecond, long burst) {
+        if (bytesPerSecond <= 0 || burst <= 0) {
+            throw Lang.makeThrow("bytesPerSecond and burst must be positive: %d, %d", bytesPerSecond, burst);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * 取得 bytes 个令牌，不够时阻塞
+     *
+     * @param bytes
+     *            字节数
+     * @throws InterruptedIOException
+     *             等待时被中断
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytes <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            refill();
+            tokens -= bytes;
+            wait = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        // 先换算成秒再乘速率，长时间空闲后纳秒数乘以速率会溢出 long
+        tokens = Math.min(burst, tokens + (now - last) / 1e9 * bytesPerSecond);
+        last = now;
+    }
+
+    /**
+     * 调整速率，已经在等待的线程不受影响
+     *
+     * @param bytesPerSecond
+     *            每秒字节数
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw Lang.makeThrow("bytesPerSecond must be positive: %d", bytesPerSecond);
+        }
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RateLimiter[%d B/s, burst=%d]", getRate(), burst);
+    }
+}
@@ -0,0 +1,127 @@
+package com.wyq.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计流读写的字节数、次数、耗时，以及单次读写的耗时和速率分布，可以多个流、多个线程共用
+ * <p>
+ * 分布按 2 的幂分档：第 i 档是 [2^i, 2^(i+1))，耗时的单位是纳秒，速率的单位是字节/秒
+ *
+ * <pre>
+ * StreamMeter meter = new StreamMeter();
+ * Streams.writeAndClose(Streams.meter(out, meter), in);
+ * log.info("{}", meter); // 字节数、平均速率、p50/p99 耗时
+ * </pre>
+ */
+public class StreamMeter {
+
+    private static final int BUCKETS = 64;
+
+    private final long start = System.nanoTime();
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder ops = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray throughput = new AtomicLongArray(BUCKETS);
+
+    /**
+     * 记录一次读写
+     *
+     * @param n
+     *            字节数
+     * @param elapsed
+     *            耗时（纳秒）
+     */
+    public void record(long n, long elapsed) {
+        elapsed = Math.max(1, elapsed);
+        bytes.add(n);
+        ops.increment();
+        nanos.add(elapsed);
+        latency.incrementAndGet(bucket(elapsed));
+        if (n > 0) {
+            throughput.incrementAndGet(bucket((long) (n * 1e9 / elapsed)));
+        }
+    }
+
+    private static int bucket(long v) {
+        return v <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(v);
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getOps() {
+        return ops.sum();
+    }
+
+    /**
+     * @return 读写花掉的总时间（纳秒）。计量包在限速流外面时含限速等待，全局复制计量不含
+     */
+    public long getBusyNanos() {
+        return nanos.sum();
+    }
+
+    /**
+     * @return 从创建到现在的平均速率（字节/秒）
+     */
+    public double getBytesPerSecond() {
+        return getBytes() * 1e9 / Math.max(1, System.nanoTime() - start);
+    }
+
+    /**
+     * @return 单次读写耗时的分布，下标为档位
+     */
+    public long[] getLatencyHistogram() {
+        return snapshot(latency);
+    }
+
+    /**
+     * @return 单次读写速率的分布，下标为档位
+     */
+    public long[] getThroughputHistogram() {
+        return snapshot(throughput);
+    }
+
+    /**
+     * 单次读写耗时的百分位数，精确到所在档位的上界
+     *
+     * @param p
+     *            百分位，0-100
+     * @return 耗时（纳秒），没有记录时为 0
+     */
+    public long getLatencyPercentile(double p) {
+        long[] h = getLatencyHistogram();
+        long total = 0;
+        for (long c : h) {
+            total += c;
+        }
+        long rank = (long) Math.ceil(total * p / 100);
+        long seen = 0;
+        for (int i = 0; i < h.length; i++) {
+            seen += h[i];
+            if (seen >= rank && h[i] > 0) {
+                return (1L << (i + 1)) - 1;
+            }
+        }
+        return 0;
+    }
+
+    private static long[] snapshot(AtomicLongArray a) {
+        long[] r = new long[a.length()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = a.get(i);
+        }
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StreamMeter[bytes=%d, ops=%d, busy=%dms, avg=%.1fKB/s, p50=%dus, p99=%dus]",
+                             getBytes(), getOps(), getBusyNanos() / 1000000, getBytesPerSecond() / 1024,
+                             getLatencyPercentile(50) / 1000, getLatencyPercentile(99) / 1000);
+    }
+}
@@ -1,11 +1,225 @@
 package com.wyq.utils;
 
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 public class Streams {
 	
 	 private static final int BUF_SIZE = 8192;
+
+    /**
+     * 异步复制的进度回调
+     */
+    public interface Progress {
+        /**
+         * 每写完一块调用一次，在写线程中执行，不要做耗时操作
+         * 
+         * @param total
+         *            已写入的字节数
+         */
+        void written(long total);
+    }
+
+    /**
+     * 异步复制在读写线程之间传递的数据块。buf 为 null 表示结束，此时 error 不为 null 表示读出错
+     */
+    private static final class Chunk {
+        final byte[] buf;
+        int len;
+        Throwable error;
+
+        Chunk(byte[] buf) {
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * 无状态、ASCII 字符按原字节编码的字符集，转码时 ASCII 字节可以直接复制
+     */
+    private static final Set<String> ASCII_TRANSPARENT = new HashSet<String>(Arrays.asList("UTF-8", "GBK", "GB2312", "GB18030", "Big5",
+                                                                                           "ISO-8859-1", "US-ASCII", "windows-1252"));
+
+    /**
+     * 全局的复制限速和计量，只作用于从输入流复制的路径：write(OutputStream, InputStream, ...) 以及基于它的 writeAndClose、
+     * writeWithDigest、FileUtils.write(File, InputStream) 的输出端
+     */
+    private static volatile RateLimiter copyLimiter;
+    private static volatile StreamMeter copyMeter;
+
+    /**
+     * 对输出流限速、计量，两者都可以为 null
+     */
+    private static final class GovernedOutputStream extends FilterOutputStream {
+        private final RateLimiter limiter;
+        private final StreamMeter meter;
+
+        GovernedOutputStream(OutputStream out, RateLimiter limiter, StreamMeter meter) {
+            super(out);
+            this.limiter = limiter;
+            this.meter = meter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (limiter != null) {
+                limiter.acquire(1);
+            }
+            long t = System.nanoTime();
+            out.write(b);
+            if (meter != null) {
+                meter.record(1, System.nanoTime() - t);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (limiter != null) {
+                limiter.acquire(len);
+            }
+            long t = System.nanoTime();
+            out.write(b, off, len);
+            if (meter != null) {
+                meter.record(len, System.nanoTime() - t);
+            }
+        }
+    }
+
+    /**
+     * 对输入流限速、计量，两者都可以为 null。读到数据之后再按实际字节数取令牌
+     */
+    private static final class GovernedInputStream extends FilterInputStream {
+        private final RateLimiter limiter;
+        private final StreamMeter meter;
+
+        GovernedInputStream(InputStream in, RateLimiter limiter, StreamMeter meter) {
+            super(in);
+            this.limiter = limiter;
+            this.meter = meter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long t = System.nanoTime();
+            int c = in.read();
+            governed(c < 0 ? 0 : 1, t);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long t = System.nanoTime();
+            int n = in.read(b, off, len);
+            governed(Math.max(0, n), t);
+            return n;
+        }
+
+        private void governed(int n, long t) throws IOException {
+            if (meter != null) {
+                meter.record(n, System.nanoTime() - t);
+            }
+            if (limiter != null) {
+                limiter.acquire(n);
+            }
+        }
+    }
+
+    /**
+     * 复制时顺带计算出的摘要
+     */
+    public static final class Digests {
+
+        private final long bytes;
+
+        private final Map<String, byte[]> digests;
+
+        Digests(long bytes, Map<String, byte[]> digests) {
+            this.bytes = bytes;
+            this.digests = Collections.unmodifiableMap(digests);
+        }
+
+        /**
+         * @return 复制的字节数
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @param algorithm
+         *            算法名，同复制时传入的名字
+         * @return 摘要，CRC32/CRC32C 为 4 字节大端；没有计算该算法时返回 null
+         */
+        public byte[] get(String algorithm) {
+            byte[] d = digests.get(algorithm);
+            return d == null ? null : d.clone();
+        }
+
+        /**
+         * @param algorithm
+         *            算法名
+         * @return 小写十六进制的摘要；没有计算该算法时返回 null
+         */
+        public String getHex(String algorithm) {
+            byte[] d = digests.get(algorithm);
+            if (d == null) {
+                return null;
+            }
+            char[] cs = new char[d.length * 2];
+            for (int i = 0; i < d.length; i++) {
+                cs[i * 2] = Character.forDigit((d[i] >> 4) & 0xF, 16);
+                cs[i * 2 + 1] = Character.forDigit(d[i] & 0xF, 16);
+            }
+            return new String(cs);
+        }
+
+        /**
+         * @return 算法名 -> 摘要
+         */
+        public Map<String, byte[]> getAll() {
+            return digests;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Digests[bytes=").append(bytes);
+            for (String alg : digests.keySet()) {
+                sb.append(", ").append(alg).append('=').append(getHex(alg));
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private static final ExecutorService copyThreads = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "streams-copy");
+        t.setDaemon(true);
+        return t;
+    });
 	
 	public static void write(Writer writer, CharSequence cs) throws IOException {
         if (null != cs && null != writer) {
@@ -34,6 +248,9 @@ public class Streams {
     /**
      * 将输入流写入一个输出流。
      * <p>
+     * 输入是可以定位的普通文件、输出是 FileOutputStream 时，用 FileChannel.transferTo 由内核直接复制，
+     * 数据不经过 Java 堆；其他情况按块读写
+     * <p>
      * <b style=color:red>注意</b>，它并不会关闭输入/出流
      * 
      * @param ops
@@ -51,26 +268,450 @@ public class Streams {
         if (null == ops || null == ins) {
             return 0;
         }
+        ops = governCopy(ops);
 
-        byte[] buf = new byte[bufferSize];
-        int len;
         long bytesCount = 0;
-        while (-1 != (len = ins.read(buf))) {
-            bytesCount += len;
-            ops.write(buf, 0, len);
-        }
-        // 啥都没写，强制触发一下写
-        // 这是考虑到 walnut 的输出流实现，比如你写一个空文件
-        // 那么输入流就是空的，但是 walnut 的包裹输出流并不知道你写过了
-        // 它人你就是打开一个输出流，然后再关上，所以自然不会对内容做改动
-        // 所以这里触发一个写，它就知道，喔你要写个空喔。
-        if (0 == bytesCount) {
-            ops.write(buf, 0, 0);
+        if (ins instanceof FileInputStream && ops instanceof FileOutputStream) {
+            FileChannel in = ((FileInputStream) ins).getChannel();
+            if (seekable(in)) {
+                bytesCount = write(((FileOutputStream) ops).getChannel(), in);
+            }
+        }
+
+        // 零拷贝之后再读一次，接上复制过程中文件新增的内容
+        byte[] buf = BufferPool.bytes(bufferSize);
+        try {
+            int len;
+            while (-1 != (len = ins.read(buf, 0, bufferSize))) {
+                bytesCount += len;
+                ops.write(buf, 0, len);
+            }
+            // 啥都没写，强制触发一下写
+            // 这是考虑到 walnut 的输出流实现，比如你写一个空文件
+            // 那么输入流就是空的，但是 walnut 的包裹输出流并不知道你写过了
+            // 它人你就是打开一个输出流，然后再关上，所以自然不会对内容做改动
+            // 所以这里触发一个写，它就知道，喔你要写个空喔。
+            if (0 == bytesCount) {
+                ops.write(buf, 0, 0);
+            }
+        }
+        finally {
+            BufferPool.release(buf);
         }
         ops.flush();
         return bytesCount;
     }
+
+    /**
+     * 将输入通道写入一个输出通道，输入是文件通道时零拷贝，否则经过池中的直接内存缓冲区
+     * <p>
+     * <b style=color:red>注意</b>，它并不会关闭通道
+     * 
+     * @param out
+     *            输出通道，需要是阻塞模式
+     * @param in
+     *            输入通道，需要是阻塞模式
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    public static long write(WritableByteChannel out, ReadableByteChannel in) throws IOException {
+        if (in instanceof FileChannel) {
+            return write(out, (FileChannel) in);
+        }
+        ByteBuffer buf = BufferPool.direct(BUF_SIZE * 8);
+        try {
+            long count = 0;
+            int len;
+            while (-1 != (len = in.read(buf))) {
+                count += len;
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+            return count;
+        }
+        finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    /**
+     * FIFO、管道、标准输入等也是 FileInputStream，但不能定位，只能按块读
+     */
+    private static boolean seekable(FileChannel in) {
+        try {
+            in.position();
+            in.size();
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 将文件从当前位置开始到末尾的内容写入一个通道，由内核直接复制（Linux 上是 sendfile），并移动文件的当前位置
+     * <p>
+     * 目标可以是 FileChannel，也可以是 SocketChannel。目标是非阻塞通道、一时写不进去时提前返回
+     * <p>
+     * <b style=color:red>注意</b>，它并不会关闭通道
+     * 
+     * @param out
+     *            输出通道
+     * @param in
+     *            文件通道
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    public static long write(WritableByteChannel out, FileChannel in) throws IOException {
+        long start = in.position();
+        long pos = start;
+        long size = in.size();
+        while (pos < size) {
+            long n = in.transferTo(pos, size - pos, out);
+            if (n <= 0) {
+                break;
+            }
+            pos += n;
+        }
+        in.position(pos);
+        return pos - start;
+    }
 	
+    /**
+     * 异步复制，块大小为 65536，最多 4 块在途
+     * 
+     * @see #writeAsync(OutputStream, InputStream, int, int, Progress)
+     */
+    public static CompletableFuture<Long> writeAsync(OutputStream ops, InputStream ins) {
+        return writeAsync(ops, ins, BUF_SIZE * 8, 4, null);
+    }
+
+    /**
+     * 将输入流异步写入一个输出流。读和写分别在两个线程中进行，读线程把数据块放入有界队列，写线程从队列中取出写入，
+     * 慢速的读不会拖住写，反之亦然
+     * <p>
+     * 写出错时读线程随之停止；读出错时已读到的数据仍会写完，然后以读的异常结束
+     * <p>
+     * <b style=color:red>注意</b>，它并不会关闭输入/出流，完成之前不要在其他线程中使用这两个流
+     * 
+     * @param ops
+     *            输出流
+     * @param ins
+     *            输入流
+     * @param bufferSize
+     *            缓冲块大小
+     * @param depth
+     *            最多在途的块数，即预读的深度
+     * @param progress
+     *            进度回调，可以为 null
+     * @return 完成时得到写入的字节数
+     */
+    public static CompletableFuture<Long> writeAsync(OutputStream ops, InputStream ins, int bufferSize, int depth,
+                                                    Progress progress) {
+        if (null == ops || null == ins) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        if (bufferSize <= 0 || depth <= 0) {
+            throw Lang.makeThrow("bufferSize and depth must be positive: %d, %d", bufferSize, depth);
+        }
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(depth);
+        // 多留一个位置给结束标记
+        BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Chunk(new byte[bufferSize]));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        CompletableFuture<Long> f = new CompletableFuture<Long>();
+        copyThreads.execute(() -> readStage(ins, free, filled, stop));
+        copyThreads.execute(() -> writeStage(ops, free, filled, stop, progress, f));
+        return f;
+    }
+
+    private static void readStage(InputStream ins, BlockingQueue<Chunk> free, BlockingQueue<Chunk> filled, AtomicBoolean stop) {
+        Chunk end = new Chunk(null);
+        try {
+            while (true) {
+                Chunk c = free.take();
+                // 写线程出错时设置 stop，之后一定会把块还回来，所以读线程不会一直阻塞在 take 上
+                if (stop.get()) {
+                    break;
+                }
+                c.len = ins.read(c.buf);
+                if (c.len < 0) {
+                    break;
+                }
+                filled.put(c);
+            }
+        }
+        catch (InterruptedException e) {
+            end.error = new InterruptedIOException();
+        }
+        catch (Throwable e) {
+            // 包括 RuntimeException 和 Error，都要交给写线程，否则它会一直等结束标记
+            end.error = e;
+        }
+        finally {
+            filled.add(end);
+        }
+    }
+
+    private static void writeStage(OutputStream ops, BlockingQueue<Chunk> free, BlockingQueue<Chunk> filled,
+                                   AtomicBoolean stop, Progress progress, CompletableFuture<Long> f) {
+        long total = 0;
+        Throwable err = null;
+        try {
+            while (true) {
+                Chunk c = filled.take();
+                if (c.buf == null) {
+                    err = err == null ? c.error : err;
+                    break;
+                }
+                if (err == null) {
+                    try {
+                        ops.write(c.buf, 0, c.len);
+                        total += c.len;
+                        if (progress != null) {
+                            progress.written(total);
+                        }
+                    }
+                    catch (Throwable e) {
+                        err = e;
+                        stop.set(true);
+                    }
+                }
+                free.add(c);
+            }
+            if (err == null) {
+                // 同 write(OutputStream, InputStream, int)，空输入时也触发一次写
+                if (0 == total) {
+                    ops.write(new byte[0], 0, 0);
+                }
+                ops.flush();
+            }
+        }
+        catch (InterruptedException e) {
+            err = new InterruptedIOException();
+        }
+        catch (Throwable e) {
+            err = e;
+        }
+        if (err == null) {
+            f.complete(total);
+        } else {
+            f.completeExceptionally(err);
+        }
+    }
+
+    /**
+     * 将输入流写入一个输出流，同时在复制的缓冲块上计算摘要，不需要再读一遍
+     * <p>
+     * <b style=color:red>注意</b>，它并不会关闭输入/出流
+     * 
+     * <pre>
+     * Streams.Digests d = Streams.writeWithDigest(out, in, "MD5", "SHA-256");
+     * String sha256 = d.getHex("SHA-256");
+     * </pre>
+     * 
+     * @param ops
+     *            输出流
+     * @param ins
+     *            输入流
+     * @param algorithms
+     *            算法名：CRC32、CRC32C，或者 MessageDigest 支持的算法如 MD5、SHA-1、SHA-256
+     * @return 字节数和摘要
+     * @throws IOException
+     */
+    public static Digests writeWithDigest(OutputStream ops, InputStream ins, String... algorithms) throws IOException {
+        MessageDigest[] mds = new MessageDigest[algorithms.length];
+        Checksum[] sums = new Checksum[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            String alg = algorithms[i];
+            if ("CRC32".equalsIgnoreCase(alg)) {
+                sums[i] = new CRC32();
+            } else if ("CRC32C".equalsIgnoreCase(alg)) {
+                sums[i] = crc32c();
+            } else {
+                try {
+                    mds[i] = MessageDigest.getInstance(alg);
+                }
+                catch (NoSuchAlgorithmException e) {
+                    throw Lang.wrapThrow(e);
+                }
+            }
+        }
+
+        long bytesCount = 0;
+        if (null != ops && null != ins) {
+            ops = governCopy(ops);
+            byte[] buf = BufferPool.bytes(BUF_SIZE * 8);
+            try {
+                int len;
+                while (-1 != (len = ins.read(buf))) {
+                    for (int i = 0; i < algorithms.length; i++) {
+                        if (mds[i] != null) {
+                            mds[i].update(buf, 0, len);
+                        } else {
+                            sums[i].update(buf, 0, len);
+                        }
+                    }
+                    ops.write(buf, 0, len);
+                    bytesCount += len;
+                }
+                // 同 write(OutputStream, InputStream, int)，空输入时也触发一次写
+                if (0 == bytesCount) {
+                    ops.write(buf, 0, 0);
+                }
+            }
+            finally {
+                BufferPool.release(buf);
+            }
+            ops.flush();
+        }
+
+        Map<String, byte[]> digests = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < algorithms.length; i++) {
+            if (mds[i] != null) {
+                digests.put(algorithms[i], mds[i].digest());
+            } else {
+                long v = sums[i].getValue();
+                digests.put(algorithms[i], new byte[]{(byte) (v >> 24), (byte) (v >> 16), (byte) (v >> 8), (byte) v});
+            }
+        }
+        return new Digests(bytesCount, digests);
+    }
+
+    /**
+     * 复制并计算摘要，然后关闭输入/出流
+     * 
+     * @see #writeWithDigest(OutputStream, InputStream, String...)
+     */
+    public static Digests writeAndCloseWithDigest(OutputStream ops, InputStream ins, String... algorithms) {
+        try {
+            return writeWithDigest(ops, ins, algorithms);
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+        finally {
+            safeClose(ops);
+            safeClose(ins);
+        }
+    }
+
+    /**
+     * Java 9 以上 JDK 自带的 CRC32C（有硬件指令加速）的构造器，Java 8 上为 null
+     */
+    private static final Constructor<? extends Checksum> CRC32C_CTOR = crc32cConstructor();
+
+    private static Constructor<? extends Checksum> crc32cConstructor() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getDeclaredConstructor();
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 有 JDK 自带的 CRC32C 时用它，否则用查表实现
+     */
+    private static Checksum crc32c() {
+        if (CRC32C_CTOR != null) {
+            try {
+                return CRC32C_CTOR.newInstance();
+            }
+            catch (ReflectiveOperationException e) {}
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * 为输出流加上限速
+     * 
+     * @param ops
+     *            输出流
+     * @param limiter
+     *            限速器，多个流共用同一个限速器时共享带宽
+     * @return 限速的输出流
+     */
+    public static OutputStream limit(OutputStream ops, RateLimiter limiter) {
+        return new GovernedOutputStream(ops, limiter, null);
+    }
+
+    /**
+     * 为输入流加上限速
+     * 
+     * @param ins
+     *            输入流
+     * @param limiter
+     *            限速器，多个流共用同一个限速器时共享带宽
+     * @return 限速的输入流
+     */
+    public static InputStream limit(InputStream ins, RateLimiter limiter) {
+        return new GovernedInputStream(ins, limiter, null);
+    }
+
+    /**
+     * 统计输出流写出的字节数、耗时
+     * 
+     * @param ops
+     *            输出流
+     * @param meter
+     *            计量器，可以多个流共用
+     * @return 计量的输出流
+     */
+    public static OutputStream meter(OutputStream ops, StreamMeter meter) {
+        return new GovernedOutputStream(ops, null, meter);
+    }
+
+    /**
+     * 统计输入流读入的字节数、耗时
+     * 
+     * @param ins
+     *            输入流
+     * @param meter
+     *            计量器，可以多个流共用
+     * @return 计量的输入流
+     */
+    public static InputStream meter(InputStream ins, StreamMeter meter) {
+        return new GovernedInputStream(ins, null, meter);
+    }
+
+    /**
+     * 设置全局的复制限速，对 write(OutputStream, InputStream, ...)、writeAndClose(OutputStream, InputStream, ...)、
+     * writeWithDigest 以及 FileUtils.write(File, InputStream) 生效，调用方不需要改动。设置后文件到文件的复制不再走零拷贝
+     * <p>
+     * 写字节数组、字符串、Reader 的方法不受影响，需要时用 {@link #limit(OutputStream, RateLimiter)} 单独包装
+     * 
+     * @param limiter
+     *            限速器，为 null 表示不限速
+     */
+    public static void setCopyLimiter(RateLimiter limiter) {
+        copyLimiter = limiter;
+    }
+
+    /**
+     * 设置全局的复制计量，生效范围同 {@link #setCopyLimiter(RateLimiter)}
+     * 
+     * @param meter
+     *            计量器，为 null 表示不计量
+     */
+    public static void setCopyMeter(StreamMeter meter) {
+        copyMeter = meter;
+    }
+
+    private static OutputStream governCopy(OutputStream ops) {
+        RateLimiter limiter = copyLimiter;
+        StreamMeter meter = copyMeter;
+        if (limiter == null && meter == null) {
+            return ops;
+        }
+        return new GovernedOutputStream(ops, limiter, meter);
+    }
+
 	  /**
      * 根据一个文件路径建立一个输出流
      * 
@@ -157,7 +798,191 @@ public class Streams {
     }
     
     public static Writer utf8w(OutputStream os) {
-        return new OutputStreamWriter(os, Charset.forName("UTF-8"));
+        return new OutputStreamWriter(os, Encoding.CHARSET_UTF8);
+    }
+
+    /**
+     * 将输入流从一种编码转成另一种编码写入输出流，非法或无法映射的字符直接报错
+     * 
+     * @see #transcode(OutputStream, Charset, InputStream, Charset, CodingErrorAction)
+     */
+    public static long transcode(OutputStream ops, Charset to, InputStream ins, Charset from) throws IOException {
+        return transcode(ops, to, ins, from, CodingErrorAction.REPORT);
+    }
+
+    /**
+     * 将输入流从一种编码转成另一种编码写入输出流，如 GBK 转 UTF-8
+     * <p>
+     * 直接驱动 CharsetDecoder/CharsetEncoder，字节、字符缓冲区从 {@link BufferPool} 借用。
+     * 两边都是 UTF-8、GBK 这类 ASCII 兼容的字符集时，成段的 ASCII 字节不经过解码编码，直接复制
+     * <p>
+     * <b style=color:red>注意</b>，它并不会关闭输入/出流
+     * 
+     * @param ops
+     *            输出流
+     * @param to
+     *            输出编码
+     * @param ins
+     *            输入流
+     * @param from
+     *            输入编码
+     * @param action
+     *            遇到非法或无法映射的字符时的处理：REPORT 抛出 CharacterCodingException，REPLACE 替换成替代字符，IGNORE 丢弃
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    public static long transcode(OutputStream ops, Charset to, InputStream ins, Charset from, CodingErrorAction action)
+            throws IOException {
+        if (null == ops || null == ins) {
+            return 0;
+        }
+        CharsetDecoder decoder = from.newDecoder().onMalformedInput(action).onUnmappableCharacter(action);
+        CharsetEncoder encoder = to.newEncoder().onMalformedInput(action).onUnmappableCharacter(action);
+        boolean ascii = ASCII_TRANSPARENT.contains(from.name()) && ASCII_TRANSPARENT.contains(to.name());
+        // 输入、输出缓冲区取不同的档位，BufferPool 每档只留一个，同档的第二个每次都要重新分配
+        byte[] ib = BufferPool.bytes(BUF_SIZE * 2);
+        char[] cbuf = BufferPool.chars(BUF_SIZE * 2);
+        byte[] ob = BufferPool.bytes(BUF_SIZE * 4);
+        try {
+            // in 处于读模式，cb、out 处于写模式
+            ByteBuffer in = ByteBuffer.wrap(ib);
+            in.limit(0);
+            CharBuffer cb = CharBuffer.wrap(cbuf);
+            ByteBuffer out = ByteBuffer.wrap(ob);
+            long count = 0;
+            int n;
+            do {
+                in.compact();
+                n = ins.read(ib, in.position(), in.remaining());
+                if (n > 0) {
+                    in.position(in.position() + n);
+                }
+                in.flip();
+                while (in.hasRemaining()) {
+                    // in 的当前位置总是在字符边界上，没有待编码的字符时，ASCII 字节直接复制
+                    if (ascii && cb.position() == 0) {
+                        int p = in.position();
+                        int q = p;
+                        int end = Math.min(in.limit(), p + out.remaining());
+                        while (q < end && ib[q] >= 0) {
+                            q++;
+                        }
+                        if (q > p) {
+                            out.put(ib, p, q - p);
+                            in.position(q);
+                            if (!out.hasRemaining()) {
+                                count += drain(ops, out);
+                            }
+                            continue;
+                        }
+                    }
+                    // 非 ASCII 段交给解码器。GBK 等双字节编码的第二个字节可能落在 ASCII 范围内，
+                    // 所以解码器没有进展时（窗口末尾是半个字符），把窗口扩到下一个 ASCII 字节之后
+                    int start = in.position();
+                    int limit = in.limit();
+                    int end = ascii ? nextAscii(ib, start + 1, limit) : limit;
+                    CoderResult cr;
+                    while (true) {
+                        in.limit(end);
+                        cr = decoder.decode(in, cb, false);
+                        in.limit(limit);
+                        if (in.position() > start || end == limit || !cr.isUnderflow()) {
+                            break;
+                        }
+                        end = nextAscii(ib, end + 1, limit);
+                    }
+                    if (cr.isError()) {
+                        cr.throwException();
+                    }
+                    count += encode(encoder, cb, out, ops, false);
+                    if (in.position() == start && cr.isUnderflow()) {
+                        // 缓冲区末尾是半个字符，读入更多
+                        break;
+                    }
+                }
+            } while (n >= 0);
+
+            // 输入结束，剩下的半个字符按非法输入处理
+            CoderResult cr;
+            do {
+                cr = decoder.decode(in, cb, true);
+                if (cr.isError()) {
+                    cr.throwException();
+                }
+                count += encode(encoder, cb, out, ops, false);
+            } while (cr.isOverflow());
+            while (decoder.flush(cb).isOverflow()) {
+                count += encode(encoder, cb, out, ops, false);
+            }
+            count += encode(encoder, cb, out, ops, true);
+            while (encoder.flush(out).isOverflow()) {
+                count += drain(ops, out);
+            }
+            count += drain(ops, out);
+            ops.flush();
+            return count;
+        }
+        finally {
+            BufferPool.release(ib);
+            BufferPool.release(cbuf);
+            BufferPool.release(ob);
+        }
+    }
+
+    /**
+     * 转码，并关闭输入/出流
+     * 
+     * @see #transcode(OutputStream, Charset, InputStream, Charset, CodingErrorAction)
+     */
+    public static long transcodeAndClose(OutputStream ops, Charset to, InputStream ins, Charset from, CodingErrorAction action) {
+        try {
+            return transcode(ops, to, ins, from, action);
+        }
+        catch (IOException e) {
+            throw Lang.wrapThrow(e);
+        }
+        finally {
+            safeClose(ops);
+            safeClose(ins);
+        }
+    }
+
+    private static int nextAscii(byte[] bs, int from, int limit) {
+        while (from < limit && bs[from] < 0) {
+            from++;
+        }
+        return Math.min(from, limit);
+    }
+
+    /**
+     * 把 cb 中的字符尽量编码进 out，out 满了就写出
+     */
+    private static long encode(CharsetEncoder encoder, CharBuffer cb, ByteBuffer out, OutputStream ops, boolean endOfInput)
+            throws IOException {
+        long count = 0;
+        cb.flip();
+        try {
+            while (true) {
+                CoderResult cr = encoder.encode(cb, out, endOfInput);
+                if (cr.isError()) {
+                    cr.throwException();
+                }
+                if (!cr.isOverflow()) {
+                    return count;
+                }
+                count += drain(ops, out);
+            }
+        }
+        finally {
+            cb.compact();
+        }
+    }
+
+    private static int drain(OutputStream ops, ByteBuffer out) throws IOException {
+        int n = out.position();
+        ops.write(out.array(), 0, n);
+        out.clear();
+        return n;
     }
     
     public static long writeAndClose(OutputStream ops, InputStream ins, int buf) {
@@ -230,17 +1055,22 @@ public class Streams {
             return 0;
         }
 
-        char[] cbuf = new char[BUF_SIZE];
-        int len, count = 0;
-        while (true) {
-            len = reader.read(cbuf);
-            if (len == -1) {
-                break;
+        char[] cbuf = BufferPool.chars(BUF_SIZE);
+        try {
+            int len, count = 0;
+            while (true) {
+                len = reader.read(cbuf, 0, BUF_SIZE);
+                if (len == -1) {
+                    break;
+                }
+                writer.write(cbuf, 0, len);
+                count += len;
             }
-            writer.write(cbuf, 0, len);
-            count += len;
+            return count;
+        }
+        finally {
+            BufferPool.release(cbuf);
         }
-        return count;
     }
     
     /**
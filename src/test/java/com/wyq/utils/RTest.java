@@ -0,0 +1,122 @@
+package com.wyq.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * UU64/UU32/UU16 编解码的往返测试
+ */
+public class RTest {
+
+    /**
+     * 随机 UUID 加上各个位全 0、全 1、只有符号位等边界值
+     */
+    private static List<UUID> samples() {
+        List<UUID> list = new ArrayList<UUID>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(UUID.randomUUID());
+            list.add(R.fastUUID());
+            list.add(R.timeUUID());
+        }
+        long[] edges = {0L, -1L, 1L, Long.MIN_VALUE, Long.MAX_VALUE, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL};
+        for (long m : edges) {
+            for (long l : edges) {
+                list.add(new UUID(m, l));
+            }
+        }
+        return list;
+    }
+
+    @Test
+    public void testUU64() {
+        for (UUID uu : samples()) {
+            String s = R.UU64(uu);
+            assertEquals(22, s.length());
+            assertEquals(uu, R.fromUU64(s));
+        }
+    }
+
+    @Test
+    public void testUU32() {
+        for (UUID uu : samples()) {
+            String s = R.UU32(uu);
+            assertEquals(26, s.length());
+            assertEquals(uu, R.fromUU32(s));
+        }
+    }
+
+    @Test
+    public void testUU16() {
+        for (UUID uu : samples()) {
+            String s = R.UU16(uu);
+            assertEquals(uu.toString().replace("-", ""), s);
+            assertEquals(uu, R.fromUU16(s));
+            assertEquals(uu.toString(), R.UU(s));
+            assertEquals(s, R.UU16FromUU64(R.UU64(uu)));
+        }
+    }
+
+    @Test
+    public void testUU32IgnoreCase() {
+        for (UUID uu : samples()) {
+            String s = R.UU32(uu);
+            assertEquals(uu, R.fromUU32(s.toUpperCase(Locale.ROOT)));
+            assertEquals(uu, R.fromUU32(mixCase(s)));
+        }
+    }
+
+    @Test
+    public void testUU16IgnoreCase() {
+        for (UUID uu : samples()) {
+            String s = R.UU16(uu);
+            assertEquals(uu, R.fromUU16(s.toUpperCase(Locale.ROOT)));
+            assertEquals(uu, R.fromUU16(mixCase(s)));
+        }
+    }
+
+    @Test
+    public void testInvalidInput() {
+        String[] uu64 = {null, "", R.UU64().substring(1), R.UU64() + "a", "!" + R.UU64().substring(1)};
+        for (String s : uu64) {
+            try {
+                R.fromUU64(s);
+                fail("fromUU64 accepted " + s);
+            }
+            catch (RuntimeException e) {}
+        }
+        String[] uu32 = {null, R.UU32().substring(1), "#" + R.UU32().substring(1)};
+        for (String s : uu32) {
+            try {
+                R.fromUU32(s);
+                fail("fromUU32 accepted " + s);
+            }
+            catch (RuntimeException e) {}
+        }
+        String[] uu16 = {null, R.UU16().substring(1), "g" + R.UU16().substring(1)};
+        for (String s : uu16) {
+            try {
+                R.fromUU16(s);
+                fail("fromUU16 accepted " + s);
+            }
+            catch (RuntimeException e) {}
+        }
+    }
+
+    /**
+     * 隔一个字符换成大写
+     */
+    private static String mixCase(String s) {
+        char[] cs = s.toCharArray();
+        for (int i = 0; i < cs.length; i += 2) {
+            cs[i] = Character.toUpperCase(cs[i]);
+        }
+        return new String(cs);
+    }
+}